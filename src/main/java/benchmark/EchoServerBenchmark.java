@@ -0,0 +1,199 @@
+package benchmark;
+
+import nio.BufferPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 阻塞的{@link socket.Server}(JDK 21+上每连接一个虚拟线程)与多reactor的{@link nio.Server}的echo对比.
+ * <p>
+ * 先建立connections个并发连接并各echo一次, 然后打印server端每个连接的开销: 堆(虚拟线程的栈在堆上)、线程数, 以及
+ * Linux上的RSS(平台线程的栈不在堆上). 之后每个JMH线程轮流在自己的那部分连接上echo一条消息, 大部分连接在任意时刻
+ * 都是空闲的, 和真实的长连接服务一样. Throughput给出吞吐量, SampleTime给出尾延迟.
+ * </p>
+ * <p>
+ * 客户端和server在同一个进程里, 每个连接占两个文件描述符, 1万个连接需要ulimit -n大于2万. 没有虚拟线程时
+ * socket.Server的平台线程数上限被设为connections.
+ * </p>
+ *
+ * @author skywalker
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class EchoServerBenchmark {
+
+    @Param({"nio", "socket"})
+    String engine;
+
+    @Param("10000")
+    int connections;
+
+    @Param("64")
+    int messageSize;
+
+    Closeable server;
+    SocketChannel[] channels;
+    final AtomicInteger threadIndex = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        long heapBefore = usedHeap();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        long rssBefore = rss();
+
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", 0);
+        int port;
+        if (engine.equals("nio")) {
+            nio.Server nioServer = new nio.Server(address, Runtime.getRuntime().availableProcessors(),
+                    nio.Server.Balance.ROUND_ROBIN, connections, BufferPool.DEFAULT, new nio.Server.EchoHandler());
+            nioServer.start();
+            server = nioServer;
+            port = nioServer.port();
+        } else if (engine.equals("socket")) {
+            socket.Server socketServer = new socket.Server(address, connections, connections,
+                    new socket.Server.EchoHandler());
+            socketServer.start();
+            server = socketServer;
+            port = socketServer.port();
+            System.out.println("virtual threads: " + socketServer.isVirtual());
+        } else {
+            throw new IllegalArgumentException("Unknown engine: " + engine);
+        }
+
+        channels = new SocketChannel[connections];
+        ByteBuffer message = message();
+        for (int i = 0; i < connections; i++) {
+            channels[i] = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+            channels[i].socket().setTcpNoDelay(true);
+            echo(channels[i], message);
+        }
+
+        // 客户端的channel也算在内, 两种engine相同, 差值可以比较
+        long heap = usedHeap() - heapBefore;
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+        long rss = rss() - rssBefore;
+        System.out.println(engine + ": " + connections + " connections, heap " + heap / connections
+                + " B/conn, threads " + threads + (rssBefore > 0 ? ", rss " + rss / connections + " B/conn" : ""));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (SocketChannel channel : channels)
+            if (channel != null)
+                channel.close();
+        server.close();
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * 进程的常驻内存, 读不到时返回0.
+     */
+    private static long rss() {
+        Path status = Paths.get("/proc/self/status");
+        try {
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith("VmRSS:"))
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+            }
+        } catch (IOException | RuntimeException ignore) {
+        }
+        return 0;
+    }
+
+    ByteBuffer message() {
+        ByteBuffer message = ByteBuffer.allocateDirect(messageSize);
+        for (int i = 0; i < messageSize; i++)
+            message.put((byte) i);
+        return message;
+    }
+
+    static void echo(SocketChannel channel, ByteBuffer message) throws IOException {
+        ((Buffer) message).clear();
+        while (message.hasRemaining())
+            channel.write(message);
+        ((Buffer) message).clear();
+        while (message.hasRemaining())
+            if (channel.read(message) < 0)
+                throw new IOException("Connection closed by server");
+    }
+
+    /**
+     * 每个线程负责下标模线程数等于自己序号的那些连接.
+     */
+    @State(Scope.Thread)
+    public static class Client {
+        int next;
+        int stride;
+        ByteBuffer message;
+
+        @Setup(Level.Trial)
+        public void setUp(EchoServerBenchmark benchmark, BenchmarkParams params) {
+            next = benchmark.threadIndex.getAndIncrement();
+            stride = params.getThreads();
+            message = benchmark.message();
+        }
+    }
+
+    @Benchmark
+    public void echo(Client client) throws IOException {
+        echo(channels[client.next], client.message);
+        client.next += client.stride;
+        if (client.next >= channels.length)
+            client.next %= client.stride;
+    }
+
+    /**
+     * 直接运行, 参数与JMH命令行相同, 比如: -p engine=socket -p connections=1000.
+     */
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(EchoServerBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,185 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import test.RecyclingSomeQueue;
+import test.SomeMpscQueue;
+import test.SomeQueue;
+import test.SomeRingQueue;
+import test.SomeSegmentQueue;
+import test.SomeSpmcQueue;
+import test.SomeSpscQueue;
+
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SomeQueue}与JDK自带队列在多生产者/多消费者下的对比.
+ * <p>
+ * offerPoll组默认1个生产者1个消费者, 通过JMH的-tg参数调整, 比如4生产者2消费者: -tg 4,2.
+ * Throughput模式给出吞吐量, SampleTime模式给出p99/p99.9等尾延迟, main方法默认带上
+ * {@link GCProfiler}, 其gc.alloc.rate.norm即每次操作分配的字节数.
+ * </p>
+ * <p>
+ * 无界队列在生产者快于消费者时会一直堆积, 所以每轮迭代结束时清空队列并限制迭代时长.
+ * </p>
+ * <p>
+ * SomeSpscQueue/SomeMpscQueue/SomeSpmcQueue只允许单生产者和/或单消费者, 与-tg不符时setUp直接失败,
+ * 比如只比较单生产者单消费者: -tg 1,1 -p type=SomeQueue,SomeSpscQueue,SomeMpscQueue,SomeSpmcQueue.
+ * </p>
+ *
+ * @author skywalker
+ */
+@State(Scope.Group)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class QueueBenchmark {
+
+    /**
+     * 入队的元素, 使用同一个对象, 这样分配的只有队列自身的节点.
+     */
+    private static final Integer ELEMENT = 1;
+
+    @Param({"SomeQueue", "RecyclingSomeQueue", "SomeRingQueue", "SomeSegmentQueue", "SomeSpscQueue", "SomeMpscQueue", "SomeSpmcQueue", "ConcurrentLinkedQueue", "ArrayBlockingQueue", "LinkedBlockingQueue"})
+    String type;
+
+    /**
+     * 有界队列的容量.
+     */
+    @Param("65536")
+    int capacity;
+
+    Queue<Integer> queue;
+
+    @Setup(Level.Iteration)
+    public void setUp(BenchmarkParams params) {
+        int[] groups = params.getThreadGroups();
+        checkTopology(type, groups[0], groups[1]);
+        queue = create(type, capacity);
+    }
+
+    /**
+     * 单生产者/单消费者的队列被多个线程同时offer/poll会被破坏, 结果没有意义.
+     */
+    static void checkTopology(String type, int producers, int consumers) {
+        boolean singleProducer = type.equals("SomeSpscQueue") || type.equals("SomeSpmcQueue");
+        boolean singleConsumer = type.equals("SomeSpscQueue") || type.equals("SomeMpscQueue");
+        if ((singleProducer && producers > 1) || (singleConsumer && consumers > 1))
+            throw new IllegalStateException(type + " does not support " + producers + " producers and "
+                    + consumers + " consumers");
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        queue.clear();
+    }
+
+    static Queue<Integer> create(String type, int capacity) {
+        switch (type) {
+            case "SomeQueue":
+                return new SomeQueue<>();
+            case "RecyclingSomeQueue":
+                return new RecyclingSomeQueue<>();
+            case "SomeRingQueue":
+                return new SomeRingQueue<>(capacity);
+            case "SomeSegmentQueue":
+                return new SomeSegmentQueue<>();
+            case "SomeSpscQueue":
+                return new SomeSpscQueue<>();
+            case "SomeMpscQueue":
+                return new SomeMpscQueue<>();
+            case "SomeSpmcQueue":
+                return new SomeSpmcQueue<>();
+            case "ConcurrentLinkedQueue":
+                return new ConcurrentLinkedQueue<>();
+            case "ArrayBlockingQueue":
+                return new ArrayBlockingQueue<>(capacity);
+            case "LinkedBlockingQueue":
+                return new LinkedBlockingQueue<>(capacity);
+            default:
+                throw new IllegalArgumentException("Unknown queue type: " + type);
+        }
+    }
+
+    /**
+     * 区分成功与失败(队列满/空)的操作次数, 否则poll空队列也会被算进吞吐量.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long offered;
+        public long offerFailed;
+        public long polled;
+        public long pollEmpty;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            offered = offerFailed = polled = pollEmpty = 0;
+        }
+    }
+
+    @Benchmark
+    @Group("offerPoll")
+    @GroupThreads(1)
+    public boolean offer(Counters counters) {
+        boolean offered = queue.offer(ELEMENT);
+        if (offered)
+            counters.offered++;
+        else
+            counters.offerFailed++;
+        return offered;
+    }
+
+    @Benchmark
+    @Group("offerPoll")
+    @GroupThreads(1)
+    public Integer poll(Counters counters) {
+        Integer e = queue.poll();
+        if (e != null)
+            counters.polled++;
+        else
+            counters.pollEmpty++;
+        return e;
+    }
+
+    /**
+     * 直接运行, 参数与JMH命令行相同, 比如: -tg 4,4 -p type=SomeQueue.
+     */
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(QueueBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,325 @@
+package nio;
+
+import test.SomeRingQueue;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按大小分级的direct {@link ByteBuffer}池.
+ * <p>
+ * 堆内buffer在channel读写时, JDK要先复制到一个临时的direct buffer, 而每次allocateDirect又很昂贵(系统调用、
+ * Cleaner、按页对齐). 池里的buffer都是direct的, 容量是256B到1MB之间的2的幂, 同一级的buffer从一整块内存上切下来.
+ * 取buffer时依次尝试: 当前线程的缓存 -> 该级共享的无锁{@link SomeRingQueue} -> 新切一块. 稳定状态下既不分配也不复制.
+ * 超过1MB的请求直接allocateDirect, 归还时交给GC.
+ * </p>
+ * <p>
+ * {@link #acquire(int)}返回的buffer容量可能大于请求的大小, 已经clear. 用完必须{@link #release(ByteBuffer)}, 归还之后
+ * 不能再使用. 线程缓存随线程存在, 线程结束时其中的buffer交给GC.
+ * </p>
+ * <p>
+ * 泄漏检测: 默认只统计未归还的个数({@link #outstanding()}), 持续增长即说明有泄漏. 用-Dnio.BufferPool.leakDetection=true
+ * 运行时, 每次acquire返回一个单独的视图并记录调用栈, 视图没有归还就被GC时打印该调用栈, 并把底层的buffer收回池中;
+ * 这个模式每次acquire都有分配, 只用于调试.
+ * </p>
+ *
+ * @author skywalker
+ */
+public final class BufferPool {
+
+    /**
+     * nio server和client默认使用的池.
+     */
+    public static final BufferPool DEFAULT = new BufferPool();
+
+    private static final boolean LEAK_DETECTION = Boolean.getBoolean("nio.BufferPool.leakDetection");
+
+    private static final int MIN_SHIFT = 8;
+    private static final int MAX_SHIFT = 20;
+    /**
+     * 较小的级别每次切这么大的一块.
+     */
+    private static final int CHUNK_SIZE = 256 * 1024;
+    /**
+     * 每级共享队列最多保存的字节数.
+     */
+    private static final int MAX_SHARED_BYTES = 32 * 1024 * 1024;
+    /**
+     * 每个线程每级缓存最多保存的字节数.
+     */
+    private static final int MAX_CACHED_BYTES = 256 * 1024;
+
+    private final SomeRingQueue<ByteBuffer>[] shared;
+    private final ThreadLocal<Cache> caches = ThreadLocal.withInitial(Cache::new);
+
+    private final LongAdder acquires = new LongAdder();
+    private final LongAdder releases = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder sharedHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder unpooled = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+    /**
+     * identityHashCode -> 借出的视图, 只在泄漏检测模式下使用.
+     */
+    private final Map<Integer, List<Tracker>> tracked = new HashMap<>();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool() {
+        int classes = MAX_SHIFT - MIN_SHIFT + 1;
+        shared = new SomeRingQueue[classes];
+        for (int i = 0; i < classes; i++) {
+            int size = 1 << (MIN_SHIFT + i);
+            shared[i] = new SomeRingQueue<>(Math.max(2 * chunkCount(size), MAX_SHARED_BYTES / size));
+        }
+    }
+
+    /**
+     * 一个线程的缓存, 每级一个栈.
+     */
+    private static final class Cache {
+        final ByteBuffer[][] stacks = new ByteBuffer[MAX_SHIFT - MIN_SHIFT + 1][];
+        final int[] sizes = new int[stacks.length];
+
+        Cache() {
+            for (int i = 0; i < stacks.length; i++)
+                stacks[i] = new ByteBuffer[Math.max(1, MAX_CACHED_BYTES >> (MIN_SHIFT + i))];
+        }
+    }
+
+    private static int chunkCount(int size) {
+        return Math.max(1, CHUNK_SIZE / size);
+    }
+
+    /**
+     * 能容纳capacity的最小级别, 超过最大级别时返回-1.
+     */
+    private static int classOf(int capacity) {
+        if (capacity <= 1 << MIN_SHIFT)
+            return 0;
+        int shift = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+        return shift <= MAX_SHIFT ? shift - MIN_SHIFT : -1;
+    }
+
+    /**
+     * 借一个容量至少为capacity的direct buffer.
+     *
+     * @return position为0, limit等于容量
+     * @throws IllegalArgumentException capacity为负数
+     */
+    public ByteBuffer acquire(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("Negative capacity: " + capacity);
+        acquires.increment();
+        int index = classOf(capacity);
+        if (index < 0) {
+            unpooled.increment();
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        Cache cache = caches.get();
+        ByteBuffer buffer;
+        if (cache.sizes[index] > 0) {
+            ByteBuffer[] stack = cache.stacks[index];
+            buffer = stack[--cache.sizes[index]];
+            stack[cache.sizes[index]] = null;
+            cacheHits.increment();
+        } else if ((buffer = shared[index].poll()) != null) {
+            sharedHits.increment();
+        } else {
+            buffer = allocate(index);
+            misses.increment();
+        }
+        ((Buffer) buffer).clear();
+        return LEAK_DETECTION ? track(buffer) : buffer;
+    }
+
+    /**
+     * 归还acquire得到的buffer.
+     */
+    public void release(ByteBuffer buffer) {
+        releases.increment();
+        if (buffer.capacity() > 1 << MAX_SHIFT)
+            return;
+        if (LEAK_DETECTION && (buffer = untrack(buffer)) == null)
+            return;
+        recycle(buffer);
+    }
+
+    private void recycle(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int index = classOf(capacity);
+        // 过大的, 或者不是池里的buffer
+        if (index < 0 || capacity != 1 << (MIN_SHIFT + index) || !buffer.isDirect())
+            return;
+        Cache cache = caches.get();
+        ByteBuffer[] stack = cache.stacks[index];
+        if (cache.sizes[index] < stack.length)
+            stack[cache.sizes[index]++] = buffer;
+        else
+            shared[index].offer(buffer);
+    }
+
+    /**
+     * 切一块新内存, 返回第一个buffer, 其余的放进共享队列.
+     */
+    private ByteBuffer allocate(int index) {
+        int size = 1 << (MIN_SHIFT + index);
+        int count = chunkCount(size);
+        ByteBuffer chunk = ByteBuffer.allocateDirect(size * count);
+        allocatedBytes.add(chunk.capacity());
+        for (int i = 1; i < count; i++)
+            shared[index].offer(slice(chunk, i * size, size));
+        return slice(chunk, 0, size);
+    }
+
+    private static ByteBuffer slice(ByteBuffer chunk, int offset, int size) {
+        ByteBuffer dup = chunk.duplicate();
+        ((Buffer) dup).position(offset);
+        ((Buffer) dup).limit(offset + size);
+        return dup.slice();
+    }
+
+    /**
+     * 借出的视图, 被GC时说明没有归还.
+     */
+    private static final class Tracker extends WeakReference<ByteBuffer> {
+        final ByteBuffer pooled;
+        final int hash;
+        final Throwable acquiredAt = new Throwable("Buffer acquired here was never released");
+
+        Tracker(ByteBuffer view, ByteBuffer pooled, ReferenceQueue<ByteBuffer> queue) {
+            super(view, queue);
+            this.pooled = pooled;
+            this.hash = System.identityHashCode(view);
+        }
+    }
+
+    private ByteBuffer track(ByteBuffer pooled) {
+        reportLeaks();
+        ByteBuffer view = pooled.duplicate();
+        Tracker tracker = new Tracker(view, pooled, collected);
+        synchronized (tracked) {
+            tracked.computeIfAbsent(tracker.hash, h -> new ArrayList<>(1)).add(tracker);
+        }
+        return view;
+    }
+
+    /**
+     * @return 视图底层的buffer, 不是借出的视图时返回null
+     */
+    private ByteBuffer untrack(ByteBuffer view) {
+        int hash = System.identityHashCode(view);
+        synchronized (tracked) {
+            List<Tracker> list = tracked.get(hash);
+            if (list != null) {
+                for (int i = 0; i < list.size(); i++) {
+                    Tracker tracker = list.get(i);
+                    if (tracker.get() == view) {
+                        list.remove(i);
+                        if (list.isEmpty())
+                            tracked.remove(hash);
+                        tracker.clear();
+                        return tracker.pooled;
+                    }
+                }
+            }
+        }
+        new IllegalStateException("Buffer released twice or not acquired from this pool").printStackTrace();
+        return null;
+    }
+
+    private void reportLeaks() {
+        for (Object ref; (ref = collected.poll()) != null; ) {
+            Tracker tracker = (Tracker) ref;
+            boolean leaked;
+            synchronized (tracked) {
+                List<Tracker> list = tracked.get(tracker.hash);
+                leaked = list != null && list.remove(tracker);
+                if (list != null && list.isEmpty())
+                    tracked.remove(tracker.hash);
+            }
+            if (leaked) {
+                leaks.increment();
+                tracker.acquiredAt.printStackTrace();
+                recycle(tracker.pooled);
+            }
+        }
+    }
+
+    public long acquires() {
+        return acquires.sum();
+    }
+
+    public long releases() {
+        return releases.sum();
+    }
+
+    /**
+     * 借出未还的buffer数, 包括泄漏检测发现并收回的.
+     */
+    public long outstanding() {
+        return acquires.sum() - releases.sum();
+    }
+
+    /**
+     * 当前线程缓存命中的次数.
+     */
+    public long cacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * 共享队列命中的次数.
+     */
+    public long sharedHits() {
+        return sharedHits.sum();
+    }
+
+    /**
+     * 需要切新内存的次数.
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * 超过最大级别, 直接分配的次数.
+     */
+    public long unpooled() {
+        return unpooled.sum();
+    }
+
+    /**
+     * 池为各级别分配的direct内存总量.
+     */
+    public long allocatedBytes() {
+        return allocatedBytes.sum();
+    }
+
+    /**
+     * 泄漏检测模式下发现的泄漏次数.
+     */
+    public long leaks() {
+        return leaks.sum();
+    }
+
+    public String toString() {
+        long hits = cacheHits(), shared = sharedHits(), total = hits + shared + misses();
+        return "BufferPool(acquires=" + acquires() + ", outstanding=" + outstanding()
+                + ", cacheHitRate=" + (total == 0 ? 0.0 : (double) hits / total)
+                + ", sharedHitRate=" + (total == 0 ? 0.0 : (double) shared / total)
+                + ", misses=" + misses() + ", unpooled=" + unpooled()
+                + ", allocatedBytes=" + allocatedBytes() + ", leaks=" + leaks() + ")";
+    }
+
+}
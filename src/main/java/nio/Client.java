@@ -1,12 +1,32 @@
 package nio;
 
+import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * NIO Client.
@@ -28,10 +48,13 @@ public class Client {
             channel.finishConnect();
         }
 
-        ByteBuffer buffer = ByteBuffer.allocate(10);
-        int read = channel.read(buffer);
-
-        System.out.println(read);
+        ByteBuffer buffer = BufferPool.DEFAULT.acquire(10);
+        try {
+            int read = channel.read(buffer);
+            System.out.println(read);
+        } finally {
+            BufferPool.DEFAULT.release(buffer);
+        }
     }
 
     /**
@@ -62,6 +85,270 @@ public class Client {
         socket.close();
     }
 
+    /**
+     * 测试多reactor的echo server.
+     */
+    @Test
+    public void echo() throws IOException {
+        try (Server server = new Server(new InetSocketAddress("127.0.0.1", 0), new Server.EchoHandler())) {
+            server.start();
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.port()))) {
+                ByteBuffer buffer = BufferPool.DEFAULT.acquire(5);
+                try {
+                    buffer.put("hello".getBytes());
+                    ((Buffer) buffer).flip();
+                    channel.write(buffer);
+                    ((Buffer) buffer).clear().limit(5);
+                    while (buffer.hasRemaining())
+                        channel.read(buffer);
+                    ((Buffer) buffer).flip();
+                    byte[] data = new byte[buffer.remaining()];
+                    buffer.get(data);
+                    System.out.println(new String(data));
+                } finally {
+                    BufferPool.DEFAULT.release(buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * 测试写的背压: 对端只写不读时, 待发送的字节超过高水位后连接变为不可写, 停止读并关注OP_WRITE; 对端开始读之后
+     * 降到低水位以下, 恢复可写和读, echo最终完整.
+     */
+    @Test
+    public void writeWaterMarks() throws Exception {
+        AtomicReference<Connection> opened = new AtomicReference<>();
+        AtomicLong received = new AtomicLong();
+        List<Boolean> changes = Collections.synchronizedList(new ArrayList<>());
+        Handler echo = new Handler() {
+            @Override
+            public void opened(Connection connection) {
+                connection.setWaterMarks(16 * 1024, 64 * 1024);
+                opened.set(connection);
+            }
+
+            @Override
+            public void read(Connection connection, ByteBuffer in) {
+                received.addAndGet(in.remaining());
+                ByteBuffer out = connection.reactor().bufferPool().acquire(in.remaining());
+                out.put(in);
+                ((Buffer) out).flip();
+                connection.send(out);
+            }
+
+            @Override
+            public void writabilityChanged(Connection connection) {
+                changes.add(connection.isWritable());
+            }
+        };
+        // 比两端的socket缓冲区加起来大得多
+        int total = 32 * 1024 * 1024;
+        try (Server server = new Server(new InetSocketAddress("127.0.0.1", 0), 1, Server.Balance.ROUND_ROBIN, 16,
+                BufferPool.DEFAULT, echo);
+             Socket socket = new Socket()) {
+            server.start();
+            socket.setReceiveBufferSize(16 * 1024);
+            socket.connect(new InetSocketAddress("127.0.0.1", server.port()));
+            socket.setSoTimeout(10_000);
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread writer = new Thread(() -> {
+                try {
+                    OutputStream out = socket.getOutputStream();
+                    byte[] chunk = new byte[64 * 1024];
+                    for (int sent = 0; sent < total; sent += chunk.length) {
+                        for (int i = 0; i < chunk.length; i++)
+                            chunk[i] = (byte) ((sent + i) % 251);
+                        out.write(chunk);
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            writer.start();
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            Connection connection;
+            while ((connection = opened.get()) == null || connection.isWritable()) {
+                Assert.assertTrue("Connection never became unwritable", System.nanoTime() < deadline);
+                Thread.sleep(1);
+            }
+            Connection paused = connection;
+            CompletableFuture<Integer> ops = new CompletableFuture<>();
+            paused.execute(() -> ops.complete(paused.interestOps()));
+            Assert.assertEquals(SelectionKey.OP_WRITE, (int) ops.get(10, TimeUnit.SECONDS));
+            // 不再读: server收到的字节数不变, 写的一端阻塞
+            long before = received.get();
+            Thread.sleep(200);
+            Assert.assertEquals(before, received.get());
+            Assert.assertTrue(received.get() < total);
+            Assert.assertTrue(writer.isAlive());
+
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[64 * 1024];
+            for (int read = 0, n; read < total; read += n) {
+                n = in.read(buffer);
+                Assert.assertTrue("Connection closed by server", n > 0);
+                for (int i = 0; i < n; i++)
+                    if (buffer[i] != (byte) ((read + i) % 251))
+                        Assert.fail("Byte " + (read + i));
+            }
+            writer.join();
+            Assert.assertNull(failure.get());
+            Assert.assertEquals(total, received.get());
+
+            // 变为不可写和恢复可写交替出现, 最后是可写
+            CompletableFuture<Boolean> writable = new CompletableFuture<>();
+            paused.execute(() -> writable.complete(paused.isWritable()));
+            Assert.assertTrue(writable.get(10, TimeUnit.SECONDS));
+            List<Boolean> events = new ArrayList<>(changes);
+            Assert.assertFalse(events.isEmpty());
+            for (int i = 0; i < events.size(); i++)
+                Assert.assertEquals("Event " + i + " of " + events, i % 2 == 1, events.get(i));
+            Assert.assertTrue(events.get(events.size() - 1));
+            CompletableFuture<Integer> resumed = new CompletableFuture<>();
+            paused.execute(() -> resumed.complete(paused.interestOps()));
+            Assert.assertEquals(SelectionKey.OP_READ, (int) resumed.get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * 测试长度前缀的帧, 包括超过reactor读缓冲区的大帧.
+     */
+    @Test
+    public void frames() throws IOException {
+        FrameEncoder encoder = FrameEncoder.lengthPrefixed(4);
+        Handler echo = (connection, frame) -> {
+            ByteBuffer copy = connection.reactor().bufferPool().acquire(frame.remaining());
+            copy.put(frame);
+            ((Buffer) copy).flip();
+            encoder.send(connection, copy);
+        };
+        Server server = new Server(new InetSocketAddress("127.0.0.1", 0), 1, Server.Balance.ROUND_ROBIN, 16,
+                BufferPool.DEFAULT, FrameDecoder.lengthPrefixed(4, 1024 * 1024, echo));
+        try {
+            server.start();
+            int[] lengths = {0, 1, 100, 200 * 1024, 7};
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.port()))) {
+                int total = 0;
+                for (int length : lengths)
+                    total += 4 + length;
+                ByteBuffer out = ByteBuffer.allocate(total);
+                for (int length : lengths) {
+                    out.putInt(length);
+                    for (int i = 0; i < length; i++)
+                        out.put((byte) i);
+                }
+                ((Buffer) out).flip();
+                while (out.hasRemaining())
+                    channel.write(out);
+                ByteBuffer in = ByteBuffer.allocate(total);
+                while (in.hasRemaining())
+                    Assert.assertTrue("Connection closed by server", channel.read(in) >= 0);
+                ((Buffer) out).rewind();
+                ((Buffer) in).flip();
+                Assert.assertEquals(out, in);
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * 测试分隔符的帧, 包括被拆到两次读里的分隔符.
+     */
+    @Test
+    public void delimitedFrames() throws IOException, InterruptedException {
+        byte[] delimiter = "\r\n".getBytes(StandardCharsets.US_ASCII);
+        FrameEncoder encoder = FrameEncoder.delimited(delimiter);
+        Handler echo = (connection, frame) -> {
+            ByteBuffer copy = connection.reactor().bufferPool().acquire(frame.remaining());
+            copy.put(frame);
+            ((Buffer) copy).flip();
+            encoder.send(connection, copy);
+        };
+        Server server = new Server(new InetSocketAddress("127.0.0.1", 0), 1, Server.Balance.ROUND_ROBIN, 16,
+                BufferPool.DEFAULT, FrameDecoder.delimited(delimiter, 16 * 1024, echo));
+        try {
+            server.start();
+            int[] lengths = {0, 5, 10 * 1024, 3};
+            ByteArrayOutputStream frames = new ByteArrayOutputStream();
+            for (int length : lengths) {
+                for (int i = 0; i < length; i++)
+                    frames.write('a' + i % 26);
+                frames.write(delimiter);
+            }
+            byte[] out = frames.toByteArray();
+            try (Socket socket = new Socket("127.0.0.1", server.port())) {
+                socket.setSoTimeout(5000);
+                // 在最后一个分隔符的\r和\n之间停顿
+                int split = out.length - 1;
+                socket.getOutputStream().write(out, 0, split);
+                Thread.sleep(50);
+                socket.getOutputStream().write(out, split, out.length - split);
+                byte[] in = new byte[out.length];
+                new DataInputStream(socket.getInputStream()).readFully(in);
+                Assert.assertArrayEquals(out, in);
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * 测试超过maxFrameLength的帧: 两种格式下server都关闭连接.
+     */
+    @Test
+    public void frameTooLong() throws IOException {
+        // 在reactor线程上抛出的AssertionError只会关闭连接, 所以记下来在测试线程上检查
+        AtomicInteger delivered = new AtomicInteger();
+        Handler ignore = (connection, frame) -> delivered.incrementAndGet();
+        byte[] delimiter = {'\n'};
+        Handler[] decoders = {
+                FrameDecoder.lengthPrefixed(4, 1024, ignore),
+                FrameDecoder.delimited(delimiter, 1024, ignore)
+        };
+        for (Handler decoder : decoders) {
+            Server server = new Server(new InetSocketAddress("127.0.0.1", 0), 1, Server.Balance.ROUND_ROBIN, 16,
+                    BufferPool.DEFAULT, decoder);
+            try {
+                server.start();
+                try (Socket socket = new Socket("127.0.0.1", server.port())) {
+                    socket.setSoTimeout(5000);
+                    // 发送完整的帧, 没有长度限制的解码器会把它交给下游
+                    byte[] body = new byte[1025];
+                    Arrays.fill(body, (byte) 'a');
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    if (decoder == decoders[0]) {
+                        out.writeInt(body.length);
+                        out.write(body);
+                    } else {
+                        out.write(body);
+                        out.write(delimiter);
+                    }
+                    assertClosed(socket);
+                }
+            } finally {
+                server.close();
+            }
+            // close()等待reactor线程退出, 之后读到的计数是完整的
+            Assert.assertEquals("Frames delivered", 0, delivered.get());
+        }
+    }
+
+    /**
+     * 对端关闭连接: 读到EOF, 或者对端关闭时还有没读的数据而收到RST.
+     */
+    private static void assertClosed(Socket socket) throws IOException {
+        try {
+            Assert.assertEquals(-1, socket.getInputStream().read());
+        } catch (SocketTimeoutException e) {
+            Assert.fail("Connection not closed by server");
+        } catch (SocketException reset) {
+            // Connection reset
+        }
+    }
+
     @Test
     public void connectLocalHost() throws IOException, InterruptedException {
         Socket socket = new Socket();
@@ -0,0 +1,357 @@
+package nio;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * 一个客户端连接, 固定属于一个{@link Reactor}.
+ * <p>
+ * 除了{@link #execute(Runnable)}、{@link #send(ByteBuffer)}、{@link #isWritable()}和{@link #close()}, 其它方法只能在所属reactor的线程上调用, 即在{@link Handler}
+ * 的回调里, 或者通过execute提交的任务里.
+ * </p>
+ * <p>
+ * 连接本身不持有读缓冲区: 读使用reactor共享的缓冲区, 只有Handler没有消费完的字节才复制到从{@link BufferPool}
+ * 借来的leftover里, 消费完即归还, 所以大量空闲连接几乎不占内存. 未消费的字节放不进共享缓冲区时(比如一个大的帧),
+ * 直接在leftover里累积, leftover按需成倍增长, 上限为{@link #MAX_CUMULATION}.
+ * </p>
+ * <p>
+ * 写: {@link #send(ByteBuffer)}只是把buffer放进连接的发送队列, 同一轮事件处理中send的所有buffer在这一轮结束时用一次
+ * gathering write写出, 小的写因此被合并. 写不完时才关注{@link SelectionKey#OP_WRITE}, 写完即取消. 待发送的字节数超过
+ * 高水位时连接变为不可写并暂停读, 对端不读响应就不再读它的请求; 降到低水位以下时恢复. 每个连接占用的内存因此有界.
+ * </p>
+ *
+ * @author skywalker
+ */
+public class Connection {
+
+    /**
+     * 默认的高低水位.
+     */
+    public static final int DEFAULT_LOW_WATER_MARK = 32 * 1024;
+    public static final int DEFAULT_HIGH_WATER_MARK = 64 * 1024;
+
+    /**
+     * 未消费字节的上限, 超过时抛出IOException.
+     */
+    public static final int MAX_CUMULATION = 16 * 1024 * 1024;
+
+    private final SocketChannel channel;
+    private final Reactor reactor;
+    private SelectionKey key;
+    private Object attachment;
+    private boolean closed;
+
+    /**
+     * 发送队列, 第一次send时创建.
+     */
+    private ArrayDeque<ByteBuffer> outbound;
+    private long pendingBytes;
+    private int lowWaterMark = DEFAULT_LOW_WATER_MARK;
+    private int highWaterMark = DEFAULT_HIGH_WATER_MARK;
+    /**
+     * 已经在reactor本轮结束时的flush列表里.
+     */
+    private boolean flushScheduled;
+    /**
+     * 超过高水位而暂停了读.
+     */
+    private boolean readPaused;
+    private volatile boolean writable = true;
+
+    /**
+     * 上次没有被消费完的字节, 写模式, 没有时为null.
+     */
+    private ByteBuffer leftover;
+
+    Connection(SocketChannel channel, Reactor reactor) {
+        this.channel = channel;
+        this.reactor = reactor;
+    }
+
+    void register(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * 读取所有可读的数据交给Handler, 对端关闭时关闭连接.
+     *
+     * @param buffer reactor共享的读缓冲区
+     */
+    void read(ByteBuffer buffer, Handler handler) throws IOException {
+        for (int i = 0; i < Reactor.MAX_READS_PER_EVENT && !closed && !readPaused; i++) {
+            boolean cumulating = leftover != null && leftover.position() >= buffer.capacity();
+            ByteBuffer input;
+            if (cumulating) {
+                if (!leftover.hasRemaining())
+                    growLeftover();
+                input = leftover;
+            } else {
+                ((Buffer) buffer).clear();
+                if (leftover != null) {
+                    ((Buffer) leftover).flip();
+                    buffer.put(leftover);
+                }
+                input = buffer;
+            }
+            int space = input.remaining();
+            int n = channel.read(input);
+            if (n < 0) {
+                close();
+                return;
+            }
+            ((Buffer) input).flip();
+            if (n > 0 || leftover != null)
+                handler.read(this, input);
+            if (closed)
+                return;
+            if (cumulating)
+                compactLeftover();
+            else
+                keepLeftover(buffer);
+            if (n < space)
+                return;
+        }
+    }
+
+    /**
+     * leftover满了, 换一个两倍大的.
+     */
+    private void growLeftover() throws IOException {
+        int capacity = leftover.capacity();
+        if (capacity >= MAX_CUMULATION)
+            throw new IOException("Unconsumed input exceeds " + MAX_CUMULATION + " bytes");
+        ByteBuffer grown = reactor.bufferPool().acquire(Math.min(capacity * 2, MAX_CUMULATION));
+        ((Buffer) leftover).flip();
+        grown.put(leftover);
+        reactor.bufferPool().release(leftover);
+        leftover = grown;
+    }
+
+    /**
+     * 直接在leftover里累积时, Handler处理之后把剩余的字节移到开头.
+     */
+    private void compactLeftover() {
+        if (leftover.hasRemaining())
+            leftover.compact();
+        else
+            releaseLeftover();
+    }
+
+    private void keepLeftover(ByteBuffer buffer) {
+        int remaining = buffer.remaining();
+        if (remaining == 0) {
+            releaseLeftover();
+            return;
+        }
+        if (leftover != null && leftover.capacity() < remaining)
+            releaseLeftover();
+        if (leftover == null)
+            leftover = reactor.bufferPool().acquire(remaining);
+        else
+            ((Buffer) leftover).clear();
+        leftover.put(buffer);
+    }
+
+    private void releaseLeftover() {
+        if (leftover != null) {
+            reactor.bufferPool().release(leftover);
+            leftover = null;
+        }
+    }
+
+    /**
+     * 把data position到limit之间的字节放进发送队列, 在本轮事件处理结束时写出. 可以在任意线程调用, 不在reactor线程
+     * 上时转交给reactor.
+     * <p>
+     * data从此归连接所有, 写完后归还给reactor的{@link BufferPool}, 所以direct buffer必须是从该池借来的, 堆内buffer
+     * 则直接丢弃. 连接已关闭时data被直接归还.
+     * </p>
+     */
+    public void send(ByteBuffer data) {
+        if (!reactor.inReactor()) {
+            reactor.execute(() -> send(data));
+            return;
+        }
+        if (closed || !data.hasRemaining()) {
+            release(data);
+            return;
+        }
+        if (outbound == null)
+            outbound = new ArrayDeque<>(4);
+        outbound.addLast(data);
+        pendingBytes += data.remaining();
+        if (!flushScheduled) {
+            flushScheduled = true;
+            reactor.scheduleFlush(this);
+        }
+        if (writable && pendingBytes > highWaterMark) {
+            writable = false;
+            readPaused = true;
+            updateInterestOps();
+            fireWritabilityChanged();
+        }
+    }
+
+    /**
+     * 用gathering write写出发送队列, 直到队列为空或者socket缓冲区满.
+     */
+    void flush() throws IOException {
+        flushScheduled = false;
+        if (closed || outbound == null || outbound.isEmpty())
+            return;
+        ByteBuffer[] batch = reactor.writeBatch();
+        for (;;) {
+            int n = 0;
+            long batchBytes = 0;
+            for (ByteBuffer data : outbound) {
+                batch[n++] = data;
+                batchBytes += data.remaining();
+                if (n == batch.length)
+                    break;
+            }
+            long written = channel.write(batch, 0, n);
+            pendingBytes -= written;
+            for (int i = 0; i < n; i++)
+                batch[i] = null;
+            while (!outbound.isEmpty() && !outbound.peekFirst().hasRemaining())
+                release(outbound.pollFirst());
+            // socket缓冲区满了
+            if (outbound.isEmpty() || written < batchBytes)
+                break;
+        }
+        if (!writable && pendingBytes < lowWaterMark) {
+            writable = true;
+            readPaused = false;
+            updateInterestOps();
+            fireWritabilityChanged();
+        } else {
+            updateInterestOps();
+        }
+    }
+
+    private void release(ByteBuffer data) {
+        if (data.isDirect())
+            reactor.bufferPool().release(data);
+    }
+
+    private void fireWritabilityChanged() {
+        try {
+            reactor.handler().writabilityChanged(this);
+        } catch (Throwable e) {
+            reactor.handler().exceptionCaught(this, e);
+        }
+    }
+
+    private void updateInterestOps() {
+        if (key == null || !key.isValid())
+            return;
+        int ops = (readPaused ? 0 : SelectionKey.OP_READ)
+                | (outbound != null && !outbound.isEmpty() ? SelectionKey.OP_WRITE : 0);
+        if (key.interestOps() != ops)
+            key.interestOps(ops);
+    }
+
+    /**
+     * 当前关注的事件, key还没有注册或者已经失效时返回-1. 用于测试.
+     */
+    int interestOps() {
+        return (key == null || !key.isValid()) ? -1 : key.interestOps();
+    }
+
+    /**
+     * 待发送的字节数没有超过高水位, 或者超过之后已经降到低水位以下. 可以在任意线程调用, 生产者应当在不可写时暂停,
+     * 等{@link Handler#writabilityChanged(Connection)}.
+     */
+    public boolean isWritable() {
+        return writable;
+    }
+
+    /**
+     * 发送队列中的字节数.
+     */
+    public long pendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * 设置发送队列的高低水位.
+     *
+     * @throws IllegalArgumentException low大于high或者为负数
+     */
+    public void setWaterMarks(int low, int high) {
+        if (low < 0 || low > high)
+            throw new IllegalArgumentException("low: " + low + ", high: " + high);
+        this.lowWaterMark = low;
+        this.highWaterMark = high;
+    }
+
+    public void attach(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    public Object attachment() {
+        return attachment;
+    }
+
+    public SocketChannel channel() {
+        return channel;
+    }
+
+    public Reactor reactor() {
+        return reactor;
+    }
+
+    public SocketAddress remoteAddress() {
+        return channel.socket().getRemoteSocketAddress();
+    }
+
+    /**
+     * 在所属reactor的线程上执行task, 可以在任意线程调用.
+     */
+    public void execute(Runnable task) {
+        reactor.execute(task);
+    }
+
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * 关闭连接, 可以在任意线程调用, 重复调用没有影响.
+     */
+    public void close() {
+        if (reactor.inReactor())
+            closeNow();
+        else
+            reactor.execute(this::closeNow);
+    }
+
+    private void closeNow() {
+        if (closed)
+            return;
+        closed = true;
+        releaseLeftover();
+        if (outbound != null) {
+            for (ByteBuffer data; (data = outbound.pollFirst()) != null; )
+                release(data);
+            pendingBytes = 0;
+        }
+        if (key != null)
+            key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+        }
+        reactor.closed(this);
+    }
+
+    public String toString() {
+        return "Connection(" + remoteAddress() + ")";
+    }
+
+}
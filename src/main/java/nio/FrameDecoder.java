@@ -0,0 +1,154 @@
+package nio;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * 把字节流切分成帧, 每个完整的帧调用一次下游Handler的{@link Handler#read(Connection, ByteBuffer)}.
+ * <p>
+ * 支持两种格式: 长度前缀(大端的1、2或4字节长度, 后跟该长度的帧体)和分隔符(帧体后跟分隔符). 交给下游的帧不含长度
+ * 或分隔符, 是读缓冲区上的只读slice, 没有复制, 和{@link Handler#read(Connection, ByteBuffer)}的参数一样只在本次
+ * 调用期间有效. 不完整的帧留在缓冲区里, 由{@link Connection}累积到下次读, 所以解码器本身没有状态, 可以被所有连接
+ * 共享. 帧体超过maxFrameLength时抛出IOException, 默认关闭连接.
+ * </p>
+ * <p>
+ * 分隔符格式在帧不完整时每次读都从帧头重新查找, 代价随maxFrameLength增长, 大的帧应当使用长度前缀.
+ * </p>
+ * <p>
+ * 除了read, 其它回调原样转给下游.
+ * </p>
+ *
+ * @author skywalker
+ * @see FrameEncoder
+ */
+public final class FrameDecoder implements Handler {
+
+    private final int lengthFieldLength;
+    private final byte[] delimiter;
+    private final int maxFrameLength;
+    private final Handler frameHandler;
+
+    private FrameDecoder(int lengthFieldLength, byte[] delimiter, int maxFrameLength, Handler frameHandler) {
+        if (maxFrameLength <= 0)
+            throw new IllegalArgumentException("maxFrameLength: " + maxFrameLength);
+        if (frameHandler == null)
+            throw new NullPointerException();
+        this.lengthFieldLength = lengthFieldLength;
+        this.delimiter = delimiter;
+        this.maxFrameLength = maxFrameLength;
+        this.frameHandler = frameHandler;
+    }
+
+    /**
+     * 长度前缀的帧.
+     *
+     * @param lengthFieldLength 长度字段的字节数, 1、2或4, 长度不包括长度字段本身
+     * @param frameHandler 每个帧调用一次它的read
+     */
+    public static FrameDecoder lengthPrefixed(int lengthFieldLength, int maxFrameLength, Handler frameHandler) {
+        checkLengthFieldLength(lengthFieldLength);
+        return new FrameDecoder(lengthFieldLength, null, maxFrameLength, frameHandler);
+    }
+
+    /**
+     * 以delimiter结尾的帧.
+     *
+     * @param frameHandler 每个帧调用一次它的read
+     */
+    public static FrameDecoder delimited(byte[] delimiter, int maxFrameLength, Handler frameHandler) {
+        if (delimiter.length == 0)
+            throw new IllegalArgumentException("Empty delimiter");
+        return new FrameDecoder(0, delimiter.clone(), maxFrameLength, frameHandler);
+    }
+
+    static void checkLengthFieldLength(int lengthFieldLength) {
+        if (lengthFieldLength != 1 && lengthFieldLength != 2 && lengthFieldLength != 4)
+            throw new IllegalArgumentException("lengthFieldLength must be 1, 2 or 4: " + lengthFieldLength);
+    }
+
+    @Override
+    public void opened(Connection connection) throws IOException {
+        frameHandler.opened(connection);
+    }
+
+    @Override
+    public void read(Connection connection, ByteBuffer in) throws IOException {
+        while (connection.isOpen()) {
+            int start = in.position();
+            int frameStart, frameEnd, next;
+            if (delimiter == null) {
+                if (in.remaining() < lengthFieldLength)
+                    return;
+                long length = readLength(in, start);
+                if (length > maxFrameLength)
+                    throw new IOException("Frame length " + length + " exceeds " + maxFrameLength);
+                frameStart = start + lengthFieldLength;
+                if (frameStart + length > in.limit())
+                    return;
+                frameEnd = frameStart + (int) length;
+                next = frameEnd;
+            } else {
+                frameEnd = indexOfDelimiter(in, start);
+                if (frameEnd < 0) {
+                    if (in.remaining() > (long) maxFrameLength + delimiter.length - 1)
+                        throw new IOException("Frame length exceeds " + maxFrameLength);
+                    return;
+                }
+                if (frameEnd - start > maxFrameLength)
+                    throw new IOException("Frame length " + (frameEnd - start) + " exceeds " + maxFrameLength);
+                frameStart = start;
+                next = frameEnd + delimiter.length;
+            }
+            ByteBuffer frame = in.asReadOnlyBuffer();
+            ((Buffer) frame).limit(frameEnd).position(frameStart);
+            ((Buffer) in).position(next);
+            frameHandler.read(connection, frame.slice());
+        }
+    }
+
+    private long readLength(ByteBuffer in, int index) {
+        switch (lengthFieldLength) {
+            case 1:
+                return in.get(index) & 0xFF;
+            case 2:
+                return in.getShort(index) & 0xFFFF;
+            default:
+                return in.getInt(index) & 0xFFFFFFFFL;
+        }
+    }
+
+    /**
+     * @return 从from开始第一个分隔符的位置, 没有时返回-1
+     */
+    private int indexOfDelimiter(ByteBuffer in, int from) {
+        byte first = delimiter[0];
+        int last = in.limit() - delimiter.length;
+        outer:
+        for (int i = from; i <= last; i++) {
+            if (in.get(i) != first)
+                continue;
+            for (int j = 1; j < delimiter.length; j++)
+                if (in.get(i + j) != delimiter[j])
+                    continue outer;
+            return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public void writabilityChanged(Connection connection) throws IOException {
+        frameHandler.writabilityChanged(connection);
+    }
+
+    @Override
+    public void closed(Connection connection) {
+        frameHandler.closed(connection);
+    }
+
+    @Override
+    public void exceptionCaught(Connection connection, Throwable cause) {
+        frameHandler.exceptionCaught(connection, cause);
+    }
+
+}
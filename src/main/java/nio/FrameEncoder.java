@@ -0,0 +1,90 @@
+package nio;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link FrameDecoder}对应的编码器.
+ * <p>
+ * 长度字段或分隔符放在从{@link BufferPool}借来的小buffer里, 和帧体先后{@link Connection#send(ByteBuffer)},
+ * 由连接在本轮结束时用一次gathering write写出, 帧体不复制. 两次send总在reactor线程上连续执行, 所以其它线程
+ * 同时发送的帧不会插到中间.
+ * </p>
+ *
+ * @author skywalker
+ * @see FrameDecoder
+ */
+public final class FrameEncoder {
+
+    private final int lengthFieldLength;
+    private final byte[] delimiter;
+    private final long maxFrameLength;
+
+    private FrameEncoder(int lengthFieldLength, byte[] delimiter) {
+        this.lengthFieldLength = lengthFieldLength;
+        this.delimiter = delimiter;
+        this.maxFrameLength = delimiter == null ? (1L << (8 * lengthFieldLength)) - 1 : Integer.MAX_VALUE;
+    }
+
+    /**
+     * 长度前缀的帧.
+     *
+     * @param lengthFieldLength 长度字段的字节数, 1、2或4
+     */
+    public static FrameEncoder lengthPrefixed(int lengthFieldLength) {
+        FrameDecoder.checkLengthFieldLength(lengthFieldLength);
+        return new FrameEncoder(lengthFieldLength, null);
+    }
+
+    /**
+     * 以delimiter结尾的帧, 帧体中不能出现delimiter.
+     */
+    public static FrameEncoder delimited(byte[] delimiter) {
+        if (delimiter.length == 0)
+            throw new IllegalArgumentException("Empty delimiter");
+        return new FrameEncoder(0, delimiter.clone());
+    }
+
+    /**
+     * 把body的position到limit之间作为一个帧发送, 可以在任意线程调用. body的所有权和
+     * {@link Connection#send(ByteBuffer)}一样交给连接.
+     *
+     * @throws IllegalArgumentException 帧体超过长度字段能表示的范围
+     */
+    public void send(Connection connection, ByteBuffer body) {
+        if (body.remaining() > maxFrameLength)
+            throw new IllegalArgumentException("Frame length " + body.remaining() + " exceeds " + maxFrameLength);
+        if (connection.reactor().inReactor())
+            encode(connection, body);
+        else
+            connection.execute(() -> encode(connection, body));
+    }
+
+    private void encode(Connection connection, ByteBuffer body) {
+        BufferPool pool = connection.reactor().bufferPool();
+        if (delimiter == null) {
+            ByteBuffer header = pool.acquire(lengthFieldLength);
+            int length = body.remaining();
+            switch (lengthFieldLength) {
+                case 1:
+                    header.put((byte) length);
+                    break;
+                case 2:
+                    header.putShort((short) length);
+                    break;
+                default:
+                    header.putInt(length);
+            }
+            ((Buffer) header).flip();
+            connection.send(header);
+            connection.send(body);
+        } else {
+            ByteBuffer trailer = pool.acquire(delimiter.length);
+            trailer.put(delimiter);
+            ((Buffer) trailer).flip();
+            connection.send(body);
+            connection.send(trailer);
+        }
+    }
+
+}
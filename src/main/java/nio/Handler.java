@@ -0,0 +1,48 @@
+package nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 连接上的事件处理, 所有方法都在连接所属的{@link Reactor}线程上调用, 不能阻塞.
+ * <p>
+ * 同一个Handler被所有连接共享, 连接自己的状态放在{@link Connection#attach(Object)}里.
+ * </p>
+ *
+ * @author skywalker
+ */
+public interface Handler {
+
+    /**
+     * 连接已注册到reactor.
+     */
+    default void opened(Connection connection) throws IOException {
+    }
+
+    /**
+     * 读到了数据. in处于读模式, 没有消费完的字节保留下来, 下次读到新数据时排在前面.
+     *
+     * @param in 只在本次调用期间有效, 不要保存引用
+     */
+    void read(Connection connection, ByteBuffer in) throws IOException;
+
+    /**
+     * {@link Connection#isWritable()}变化了: 发送队列超过高水位, 或者之后降到了低水位以下.
+     */
+    default void writabilityChanged(Connection connection) throws IOException {
+    }
+
+    /**
+     * 连接已关闭, 不论是对端关闭、出错还是本地关闭.
+     */
+    default void closed(Connection connection) {
+    }
+
+    /**
+     * 其它方法抛出了异常, 默认关闭连接.
+     */
+    default void exceptionCaught(Connection connection, Throwable cause) {
+        connection.close();
+    }
+
+}
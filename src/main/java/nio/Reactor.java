@@ -0,0 +1,223 @@
+package nio;
+
+import test.SomeMpscQueue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一个worker selector及其线程, 负责一部分连接的读写.
+ * <p>
+ * 其它线程(acceptor、业务线程)不直接操作这个selector, 而是把任务放进无锁的{@link SomeMpscQueue}, 由reactor线程在
+ * 每轮select之后执行, 包括新连接的注册. 只有队列从空变为非空、并且reactor可能阻塞在select上时才调用
+ * {@link Selector#wakeup()}, 避免每个任务都付出一次系统调用.
+ * </p>
+ *
+ * @author skywalker
+ */
+public class Reactor implements Runnable, Closeable {
+
+    /**
+     * 一次可读事件最多连续read的次数, 防止一个连接饿死同一reactor上的其它连接.
+     */
+    static final int MAX_READS_PER_EVENT = 16;
+
+    /**
+     * 一次gathering write最多的buffer数, 不超过Linux的IOV_MAX.
+     */
+    private static final int MAX_WRITE_BATCH = 64;
+
+    private final Selector selector;
+    private final Handler handler;
+    private final SomeMpscQueue<Runnable> tasks = new SomeMpscQueue<>();
+    /**
+     * reactor线程在select之前置为false, 提交任务的线程将其CAS为true后才wakeup.
+     */
+    private final AtomicBoolean wakenUp = new AtomicBoolean();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final BufferPool bufferPool;
+    /**
+     * 所有连接共享的读缓冲区, 从池中借来.
+     */
+    private final ByteBuffer readBuffer;
+    /**
+     * 本轮send过的连接, 本轮结束时flush.
+     */
+    private final List<Connection> flushes = new ArrayList<>();
+    private final ByteBuffer[] writeBatch = new ByteBuffer[MAX_WRITE_BATCH];
+    private volatile Thread thread;
+    private volatile boolean closed;
+
+    Reactor(Handler handler, BufferPool bufferPool, int readBufferSize) throws IOException {
+        this.selector = Selector.open();
+        this.handler = handler;
+        this.bufferPool = bufferPool;
+        this.readBuffer = bufferPool.acquire(readBufferSize);
+    }
+
+    /**
+     * 把已经accept的连接交给这个reactor, 可以在任意线程调用.
+     */
+    void register(SocketChannel channel) {
+        connections.incrementAndGet();
+        execute(() -> {
+            Connection connection = new Connection(channel, this);
+            try {
+                channel.configureBlocking(false);
+                connection.register(channel.register(selector, SelectionKey.OP_READ, connection));
+                handler.opened(connection);
+            } catch (Throwable e) {
+                handler.exceptionCaught(connection, e);
+                connection.close();
+            }
+        });
+    }
+
+    /**
+     * 在reactor线程上执行task, 可以在任意线程调用.
+     */
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        if (!inReactor() && wakenUp.compareAndSet(false, true))
+            selector.wakeup();
+    }
+
+    /**
+     * 这个reactor上的连接使用的buffer池.
+     */
+    public BufferPool bufferPool() {
+        return bufferPool;
+    }
+
+    Handler handler() {
+        return handler;
+    }
+
+    ByteBuffer[] writeBatch() {
+        return writeBatch;
+    }
+
+    void scheduleFlush(Connection connection) {
+        flushes.add(connection);
+    }
+
+    public boolean inReactor() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * 当前的连接数, 包括尚未完成注册的.
+     */
+    public int connections() {
+        return connections.get();
+    }
+
+    void closed(Connection connection) {
+        connections.decrementAndGet();
+        handler.closed(connection);
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        while (!closed) {
+            try {
+                wakenUp.set(false);
+                if (tasks.isEmpty())
+                    selector.select();
+                else
+                    selector.selectNow();
+                processSelectedKeys();
+                runTasks();
+                flushAll();
+            } catch (ClosedSelectorException e) {
+                // selector被关闭后每次select都会抛出, 继续循环只会不停地打印
+                e.printStackTrace();
+                break;
+            } catch (Throwable e) {
+                // select本身的错误不应该让reactor退出
+                e.printStackTrace();
+                if (!selector.isOpen())
+                    break;
+            }
+        }
+        runTasks();
+        // selector已被关闭时取不到key, 其中的channel也已被注销
+        if (selector.isOpen()) {
+            for (SelectionKey key : selector.keys()) {
+                Object attachment = key.attachment();
+                if (attachment instanceof Connection)
+                    ((Connection) attachment).close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException ignore) {
+        }
+        bufferPool.release(readBuffer);
+    }
+
+    private void processSelectedKeys() {
+        Set<SelectionKey> keys = selector.selectedKeys();
+        if (keys.isEmpty())
+            return;
+        for (Iterator<SelectionKey> iterator = keys.iterator(); iterator.hasNext(); ) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            Connection connection = (Connection) key.attachment();
+            try {
+                int ready = key.readyOps();
+                if ((ready & SelectionKey.OP_WRITE) != 0 && key.isValid())
+                    connection.flush();
+                if ((ready & SelectionKey.OP_READ) != 0 && key.isValid())
+                    connection.read(readBuffer, handler);
+            } catch (Throwable e) {
+                handler.exceptionCaught(connection, e);
+            }
+        }
+    }
+
+    private void flushAll() {
+        // flush时的回调可能send, 列表会变长
+        for (int i = 0; i < flushes.size(); i++) {
+            Connection connection = flushes.get(i);
+            try {
+                connection.flush();
+            } catch (Throwable e) {
+                handler.exceptionCaught(connection, e);
+            }
+        }
+        flushes.clear();
+    }
+
+    private void runTasks() {
+        for (Runnable task; (task = tasks.poll()) != null; ) {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 关闭所有连接并停止reactor线程.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+}
@@ -1,56 +1,221 @@
 package nio;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
- * NIO server.
+ * NIO server: 多reactor模型.
+ * <p>
+ * 一个acceptor线程只负责accept, 每个连接按{@link Balance}交给N个{@link Reactor}中的一个, 之后这个连接上的所有
+ * 读写都在该reactor的线程上完成. reactor数默认等于CPU核数.
+ * </p>
+ * <p>
+ * 为了支撑大量连接: listen backlog可配置, 连接不持有自己的读缓冲区(见{@link Connection}), 文件描述符用尽时acceptor
+ * 暂停一会儿而不是空转.
+ * </p>
  *
  * @author skywalker
  */
-public class Server {
+public class Server implements Closeable {
 
-    public static void main(String[] args) throws IOException {
-        Selector selector = Selector.open();
-        ServerSocketChannel channel = ServerSocketChannel.open();
+    /**
+     * 新连接分配给哪个reactor.
+     */
+    public enum Balance {
+        /**
+         * 轮流分配.
+         */
+        ROUND_ROBIN,
+        /**
+         * 分配给当前连接数最少的reactor.
+         */
+        LEAST_CONNECTIONS
+    }
+
+    private static final int DEFAULT_BACKLOG = 1024;
+    private static final int DEFAULT_READ_BUFFER_SIZE = 64 * 1024;
+
+    private final InetSocketAddress address;
+    private final Reactor[] reactors;
+    private final Thread[] reactorThreads;
+    private final Balance balance;
+    private final int backlog;
+    private int next;
 
-        channel.socket().bind(new InetSocketAddress(8080));
+    private ServerSocketChannel serverChannel;
+    private Selector acceptSelector;
+    private Thread acceptor;
+    private volatile boolean closed;
+
+    /**
+     * 每个CPU核一个reactor, 轮流分配连接, 使用{@link BufferPool#DEFAULT}.
+     */
+    public Server(InetSocketAddress address, Handler handler) throws IOException {
+        this(address, Runtime.getRuntime().availableProcessors(), Balance.ROUND_ROBIN, DEFAULT_BACKLOG,
+                BufferPool.DEFAULT, handler);
+    }
+
+    /**
+     * @param workers reactor的个数
+     * @param backlog listen队列的长度
+     * @param bufferPool 读写使用的buffer池
+     */
+    public Server(InetSocketAddress address, int workers, Balance balance, int backlog, BufferPool bufferPool,
+                  Handler handler) throws IOException {
+        if (workers <= 0 || backlog <= 0)
+            throw new IllegalArgumentException();
+        if (address == null || balance == null || bufferPool == null || handler == null)
+            throw new NullPointerException();
+        this.address = address;
+        this.balance = balance;
+        this.backlog = backlog;
+        this.reactors = new Reactor[workers];
+        this.reactorThreads = new Thread[workers];
+        for (int i = 0; i < workers; i++)
+            reactors[i] = new Reactor(handler, bufferPool, DEFAULT_READ_BUFFER_SIZE);
+    }
+
+    /**
+     * 绑定端口, 启动acceptor和所有reactor线程.
+     */
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(address, backlog);
         // none-blocking mode
-        channel.configureBlocking(false);
+        serverChannel.configureBlocking(false);
+        acceptSelector = Selector.open();
         // register accept event
-        channel.register(selector, SelectionKey.OP_ACCEPT);
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
 
-        while (selector.select() != 0) {
+        for (int i = 0; i < reactors.length; i++) {
+            reactorThreads[i] = new Thread(reactors[i], "nio-reactor-" + i);
+            reactorThreads[i].start();
+        }
+        acceptor = new Thread(this::acceptLoop, "nio-acceptor");
+        acceptor.start();
+    }
 
-            Set<SelectionKey> keys = selector.selectedKeys();
-            Iterator<SelectionKey> iterator = keys.iterator();
+    /**
+     * 实际监听的端口, 绑定0端口时由系统分配.
+     */
+    public int port() throws IOException {
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
 
-            SelectionKey key;
-            while (iterator.hasNext()) {
-                key = iterator.next();
+    public Reactor[] reactors() {
+        return reactors.clone();
+    }
 
-                if (key.isAcceptable()) {
-                    SocketChannel client = channel.accept();
-                    System.out.println("Client connected: " + client.getRemoteAddress());
-                    client.configureBlocking(false);
-                    client.register(selector, SelectionKey.OP_READ);
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                acceptSelector.select();
+                for (Iterator<SelectionKey> iterator = acceptSelector.selectedKeys().iterator(); iterator.hasNext(); ) {
+                    iterator.next();
+                    iterator.remove();
+                }
+                // 一次把backlog里的连接都取出来
+                for (SocketChannel client; (client = serverChannel.accept()) != null; ) {
+                    try {
+                        client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    } catch (IOException e) {
+                        // 比如accept之后连接已被对端重置, 只放弃这一个连接
+                        closeQuietly(client);
+                        continue;
+                    }
+                    nextReactor().register(client);
+                }
+            } catch (IOException e) {
+                if (closed)
+                    return;
+                // 通常是文件描述符用尽, 等已有连接关闭一些
+                e.printStackTrace();
+                try {
+                    TimeUnit.MILLISECONDS.sleep(100);
+                } catch (InterruptedException ignore) {
+                    return;
                 }
+            }
+        }
+    }
 
-                if (key.isWritable())
-                    System.out.println("writable.");
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+        }
+    }
 
-                if (key.isReadable())
-                    System.out.println("readable");
+    private Reactor nextReactor() {
+        if (balance == Balance.ROUND_ROBIN) {
+            Reactor reactor = reactors[next];
+            next = (next + 1 == reactors.length) ? 0 : next + 1;
+            return reactor;
+        }
+        Reactor least = reactors[0];
+        for (int i = 1; i < reactors.length; i++)
+            if (reactors[i].connections() < least.connections())
+                least = reactors[i];
+        return least;
+    }
 
-                iterator.remove();
+    /**
+     * 停止accept, 关闭所有连接, 等待线程退出.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        if (acceptSelector != null)
+            acceptSelector.wakeup();
+        try {
+            if (acceptor != null)
+                acceptor.join();
+            if (acceptSelector != null)
+                acceptSelector.close();
+            if (serverChannel != null)
+                serverChannel.close();
+            for (int i = 0; i < reactors.length; i++) {
+                reactors[i].close();
+                if (reactorThreads[i] != null)
+                    reactorThreads[i].join();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
+    /**
+     * echo server. 读缓冲区是reactor共享的, 所以复制到从池中借来的buffer里再send; 对端不读时发送队列超过高水位,
+     * 连接自动暂停读.
+     */
+    public static final class EchoHandler implements Handler {
+
+        @Override
+        public void read(Connection connection, ByteBuffer in) {
+            ByteBuffer out = connection.reactor().bufferPool().acquire(in.remaining());
+            out.put(in);
+            ((Buffer) out).flip();
+            connection.send(out);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Server server = new Server(new InetSocketAddress(8080), new EchoHandler());
+        server.start();
+        System.out.println("Listening on " + server.port() + " with " + server.reactors.length + " reactors");
+    }
+
 }
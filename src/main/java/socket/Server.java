@@ -1,21 +1,246 @@
 package socket;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * Server.
+ * 阻塞IO的server: 一个线程循环accept, 每个连接一个线程, {@link ConnectionHandler}里直接用阻塞的
+ * {@link Socket}读写.
+ * <p>
+ * 在JDK 21+上每个连接一个虚拟线程, 阻塞时只占用堆上的一小段栈, 上万连接的内存开销与{@link nio.Server}相当而代码是
+ * 顺序的. 虚拟线程通过反射创建, 所以在更低的JDK上也能编译运行, 这时退化为有界的平台线程池: 最多maxPlatformThreads
+ * 个并发连接, 超过时新连接被直接关闭. 注意虚拟线程在synchronized块里阻塞时会占住载体线程(JDK 24之前).
+ * </p>
  *
  * @author skywalker
  */
-public class Server {
+public class Server implements Closeable {
+
+    /**
+     * 处理一个连接, 在该连接独占的线程上调用, 返回或抛出异常后连接被关闭.
+     */
+    public interface ConnectionHandler {
+
+        void handle(Socket socket) throws IOException;
+
+    }
+
+    private static final int DEFAULT_BACKLOG = 1024;
+    private static final int DEFAULT_MAX_PLATFORM_THREADS = 1024;
+
+    private final InetSocketAddress address;
+    private final int backlog;
+    private final ConnectionHandler handler;
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private final LongAdder rejected = new LongAdder();
+
+    private ServerSocket serverSocket;
+    private Thread acceptor;
+    private volatile boolean closed;
+
+    /**
+     * 可用时使用虚拟线程, 否则最多1024个平台线程.
+     */
+    public Server(InetSocketAddress address, ConnectionHandler handler) {
+        this(address, DEFAULT_BACKLOG, DEFAULT_MAX_PLATFORM_THREADS, handler);
+    }
+
+    /**
+     * @param backlog listen队列的长度
+     * @param maxPlatformThreads 没有虚拟线程时的最大并发连接数
+     */
+    public Server(InetSocketAddress address, int backlog, int maxPlatformThreads, ConnectionHandler handler) {
+        if (backlog <= 0 || maxPlatformThreads <= 0)
+            throw new IllegalArgumentException();
+        if (address == null || handler == null)
+            throw new NullPointerException();
+        this.address = address;
+        this.backlog = backlog;
+        this.handler = handler;
+        ExecutorService virtualExecutor = newVirtualThreadExecutor();
+        this.virtual = virtualExecutor != null;
+        this.executor = virtual ? virtualExecutor : newPlatformThreadExecutor(maxPlatformThreads);
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor(), JDK不支持时返回null.
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            // JDK 21之前没有这个方法, 19/20上没有开启preview时抛出UnsupportedOperationException
+            return null;
+        }
+    }
+
+    private static ExecutorService newPlatformThreadExecutor(int maxThreads) {
+        AtomicInteger index = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread thread = new Thread(r, "socket-worker-" + index.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+        // 不排队: 连接占用线程直到关闭, 排在后面的连接可能永远等不到
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), factory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * 绑定端口, 启动acceptor线程.
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(address, backlog);
+        acceptor = new Thread(this::acceptLoop, "socket-acceptor");
+        acceptor.start();
+    }
+
+    /**
+     * 实际监听的端口, 绑定0端口时由系统分配.
+     */
+    public int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * 是否每个连接一个虚拟线程.
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * 当前的连接数.
+     */
+    public int connections() {
+        return sockets.size();
+    }
+
+    /**
+     * 因为平台线程用尽而关闭的连接数.
+     */
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                if (closed)
+                    return;
+                // 通常是文件描述符用尽, 等已有连接关闭一些
+                e.printStackTrace();
+                try {
+                    TimeUnit.MILLISECONDS.sleep(100);
+                } catch (InterruptedException ignore) {
+                    return;
+                }
+                continue;
+            }
+            sockets.add(socket);
+            if (closed) {
+                close(socket);
+                return;
+            }
+            try {
+                executor.execute(() -> serve(socket));
+            } catch (RejectedExecutionException e) {
+                rejected.increment();
+                close(socket);
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            handler.handle(socket);
+        } catch (IOException e) {
+            // close()关闭socket时阻塞中的读写会抛出SocketException
+            if (!closed && !(e instanceof SocketException))
+                e.printStackTrace();
+        } finally {
+            close(socket);
+        }
+    }
+
+    private void close(Socket socket) {
+        sockets.remove(socket);
+        try {
+            socket.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * 停止accept, 关闭所有连接, 等待处理线程退出.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        if (serverSocket != null)
+            serverSocket.close();
+        for (Socket socket : sockets)
+            close(socket);
+        executor.shutdown();
+        try {
+            if (acceptor != null)
+                acceptor.join();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * echo server.
+     */
+    public static final class EchoHandler implements ConnectionHandler {
+
+        @Override
+        public void handle(Socket socket) throws IOException {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int n; (n = in.read(buffer)) >= 0; )
+                out.write(buffer, 0, n);
+        }
+    }
 
     public static void main(String[] args) throws IOException {
-        ServerSocket ss = new ServerSocket();
-        ss.bind(new InetSocketAddress(8080));
-        Socket socket = ss.accept();
+        Server server = new Server(new InetSocketAddress(8080), new EchoHandler());
+        server.start();
+        System.out.println("Listening on " + server.port() + (server.isVirtual() ? " with virtual threads" : ""));
     }
 
 }
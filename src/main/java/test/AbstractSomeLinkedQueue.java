@@ -0,0 +1,258 @@
+package test;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Skeleton of the linked queues specialised for a fixed number of
+ * producers or consumers ({@link SomeSpscQueue}, {@link SomeMpscQueue},
+ * {@link SomeSpmcQueue}).  Subclasses implement {@code offer} and
+ * {@code poll}; everything that only reads the list lives here.
+ *
+ * <p>The list always starts with a dummy node: {@code head} is the node
+ * whose successor holds the first element, {@code tail} the last node.
+ * A consumed node becomes the new dummy after its item has been cleared,
+ * and the old dummy is linked to itself, as in {@link SomeQueue}, so
+ * that dequeued nodes do not keep later ones reachable.
+ *
+ * <p>Iterators are <i>weakly consistent</i> and do not support
+ * {@link Iterator#remove}; neither does {@link #remove(Object)}, since a
+ * removal from the middle would race with the unsynchronised consumer
+ * side of the single-consumer queues.
+ *
+ * @author skywalker
+ * @param <E> the type of elements held in this collection
+ */
+abstract class AbstractSomeLinkedQueue<E> extends SomeLinkedQueuePad2<E> {
+
+    static final class Node<E> {
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<Node, Object> ITEM =
+                AtomicReferenceFieldUpdater.newUpdater(Node.class, Object.class, "item");
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+                AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+
+        volatile E item;
+        volatile Node<E> next;
+
+        /**
+         * Constructs a new node.  Uses relaxed write because item can
+         * only be seen after publication of the node.
+         */
+        Node(E item) {
+            ITEM.lazySet(this, item);
+        }
+
+        void lazySetItem(E val) {
+            ITEM.lazySet(this, val);
+        }
+
+        void lazySetNext(Node<E> val) {
+            NEXT.lazySet(this, val);
+        }
+    }
+
+    AbstractSomeLinkedQueue() {
+        Node<E> dummy = new Node<>(null);
+        head = dummy;
+        tail = dummy;
+    }
+
+    /**
+     * Returns the successor of p, or the first node if p.next has been
+     * linked to self, which will only be true if traversing with a
+     * stale pointer that is now off the list.
+     */
+    final Node<E> succ(Node<E> p) {
+        Node<E> next = p.next;
+        return (p == next) ? head.next : next;
+    }
+
+    /**
+     * Takes the item of p, the successor of the dummy node h, and makes p
+     * the new dummy node.  Only for queues with a single consumer: nobody
+     * else writes head or items, so ordered stores suffice where
+     * {@link SomeQueue} needs casItem and casHead.
+     */
+    final E consumeSingle(Node<E> h, Node<E> p) {
+        E item = p.item;
+        p.lazySetItem(null);
+        lazySetHead(p);
+        h.lazySetNext(h);
+        return item;
+    }
+
+    /**
+     * Returns the first node that still holds an item, or null.
+     */
+    final Node<E> first() {
+        for (Node<E> p = head.next; p != null; p = succ(p))
+            if (p.item != null)
+                return p;
+        return null;
+    }
+
+    public E peek() {
+        for (;;) {
+            Node<E> p = first();
+            if (p == null)
+                return null;
+            E item = p.item;
+            if (item != null)
+                return item;
+        }
+    }
+
+    /**
+     * Returns {@code true} if this queue contains no elements.
+     *
+     * @return {@code true} if this queue contains no elements
+     */
+    public boolean isEmpty() {
+        return first() == null;
+    }
+
+    /**
+     * Returns the number of elements in this queue.  This is an O(n)
+     * traversal and may be inaccurate if this queue is modified
+     * concurrently.
+     *
+     * @return the number of elements in this queue
+     */
+    public int size() {
+        int count = 0;
+        for (Node<E> p = first(); p != null; p = succ(p))
+            if (p.item != null)
+                // Collection.size() spec says to max out
+                if (++count == Integer.MAX_VALUE)
+                    break;
+        return count;
+    }
+
+    /**
+     * Not supported.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    public boolean remove(Object o) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns an iterator over the elements in this queue in proper
+     * sequence.  The returned iterator is weakly consistent and does not
+     * support {@link Iterator#remove}.
+     *
+     * @return an iterator over the elements in this queue in proper sequence
+     */
+    public Iterator<E> iterator() {
+        return new Itr();
+    }
+
+    private class Itr implements Iterator<E> {
+        private Node<E> nextNode;
+        private E nextItem;
+
+        Itr() {
+            advance(first());
+        }
+
+        private void advance(Node<E> p) {
+            for (; p != null; p = succ(p)) {
+                E item = p.item;
+                if (item != null) {
+                    nextNode = p;
+                    nextItem = item;
+                    return;
+                }
+            }
+            nextNode = null;
+            nextItem = null;
+        }
+
+        public boolean hasNext() {
+            return nextNode != null;
+        }
+
+        public E next() {
+            if (nextNode == null) throw new NoSuchElementException();
+            E e = nextItem;
+            advance(succ(nextNode));
+            return e;
+        }
+    }
+
+    /**
+     * Throws NullPointerException if argument is null.
+     *
+     * @param v the element
+     */
+    static void checkNotNull(Object v) {
+        if (v == null)
+            throw new NullPointerException();
+    }
+}
+
+/*
+ * head and tail are padded like SomeQueue's, see the note above
+ * SomeQueuePad0.
+ */
+
+abstract class SomeLinkedQueuePad0<E> extends AbstractQueue<E> {
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
+
+abstract class SomeLinkedQueueHead<E> extends SomeLinkedQueuePad0<E> {
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<SomeLinkedQueueHead, AbstractSomeLinkedQueue.Node> HEAD =
+            AtomicReferenceFieldUpdater.newUpdater(SomeLinkedQueueHead.class, AbstractSomeLinkedQueue.Node.class, "head");
+
+    /**
+     * The dummy node in front of the first element.  Written with ordered
+     * stores by single consumers and with CAS by multiple consumers.
+     */
+    volatile AbstractSomeLinkedQueue.Node<E> head;
+
+    final void lazySetHead(AbstractSomeLinkedQueue.Node<E> val) {
+        HEAD.lazySet(this, val);
+    }
+
+    final boolean casHead(AbstractSomeLinkedQueue.Node<E> cmp, AbstractSomeLinkedQueue.Node<E> val) {
+        return HEAD.compareAndSet(this, cmp, val);
+    }
+}
+
+abstract class SomeLinkedQueuePad1<E> extends SomeLinkedQueueHead<E> {
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
+
+abstract class SomeLinkedQueueTail<E> extends SomeLinkedQueuePad1<E> {
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<SomeLinkedQueueTail, AbstractSomeLinkedQueue.Node> TAIL =
+            AtomicReferenceFieldUpdater.newUpdater(SomeLinkedQueueTail.class, AbstractSomeLinkedQueue.Node.class, "tail");
+
+    /**
+     * The last node.  Written plainly by single producers and swapped by
+     * multiple producers.
+     */
+    volatile AbstractSomeLinkedQueue.Node<E> tail;
+
+    @SuppressWarnings("unchecked")
+    final AbstractSomeLinkedQueue.Node<E> getAndSetTail(AbstractSomeLinkedQueue.Node<E> val) {
+        return TAIL.getAndSet(this, val);
+    }
+
+    final void lazySetTail(AbstractSomeLinkedQueue.Node<E> val) {
+        TAIL.lazySet(this, val);
+    }
+}
+
+abstract class SomeLinkedQueuePad2<E> extends SomeLinkedQueueTail<E> {
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
@@ -0,0 +1,63 @@
+package test;
+
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Atomic access to {@code long} words of a direct {@link ByteBuffer}, for
+ * {@link SomeOffHeapQueue}.  Indices are byte offsets and must be
+ * multiples of 8.
+ *
+ * <p>This is the Java 8 version, based on {@code sun.misc.Unsafe} and the
+ * buffer's native address; like {@link SomeQueueAccess} it has a
+ * {@code java.lang.invoke.VarHandle} based twin in {@code src/main/java9}.
+ * Both versions must keep the same methods and memory semantics.
+ *
+ * @author skywalker
+ */
+final class ByteBufferAccess {
+
+    private ByteBufferAccess() {
+    }
+
+    static long getLongVolatile(ByteBuffer buffer, int index) {
+        return UNSAFE.getLongVolatile(null, address(buffer) + index);
+    }
+
+    /**
+     * Ordered (release) store.
+     */
+    static void putLongRelease(ByteBuffer buffer, int index, long value) {
+        UNSAFE.putOrderedLong(null, address(buffer) + index, value);
+    }
+
+    static boolean casLong(ByteBuffer buffer, int index, long cmp, long val) {
+        return UNSAFE.compareAndSwapLong(null, address(buffer) + index, cmp, val);
+    }
+
+    private static long address(ByteBuffer buffer) {
+        if (!buffer.isDirect())
+            throw new IllegalArgumentException("Not a direct buffer");
+        return UNSAFE.getLong(buffer, addressOffset);
+    }
+
+    // Unsafe mechanics
+
+    private static final sun.misc.Unsafe UNSAFE;
+    private static final long addressOffset;
+
+    static {
+        try {
+            final Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            UNSAFE = (Unsafe) field.get(null);
+            addressOffset = UNSAFE.objectFieldOffset
+                    (Buffer.class.getDeclaredField("address"));
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
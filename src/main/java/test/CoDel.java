@@ -0,0 +1,118 @@
+package test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The CoDel (controlled delay) drop law of Nichols and Jacobson, for
+ * shedding load from a timestamped {@link SomeQueue} with
+ * {@link SomeQueue#poll(CoDel)}.
+ *
+ * <p>CoDel watches the sojourn time of the elements a consumer takes.  A
+ * backlog that drains quickly is left alone; once sojourn times have
+ * stayed above the target for a whole interval, CoDel starts dropping,
+ * and drops at a rate that grows with the square root of the number of
+ * drops until sojourn times fall below the target again.  This bounds the
+ * delay of the elements that are processed, instead of letting a
+ * standing queue build up.
+ *
+ * <p>A CoDel keeps the control state of one consumer and is not
+ * thread-safe; give each consumer thread its own.  All consumers see the
+ * same sojourn times, so they come to the same decisions.
+ *
+ * @author skywalker
+ */
+public final class CoDel {
+
+    private final long targetNanos;
+    private final long intervalNanos;
+
+    /** When sojourn times will have been above target for an interval; 0 if below */
+    private long firstAboveTime;
+    private boolean dropping;
+    /** Drops in the current dropping state */
+    private int count;
+    private long dropNext;
+    private long drops;
+
+    /**
+     * Creates a CoDel with the usual 5 ms target and 100 ms interval.
+     */
+    public CoDel() {
+        this(5, 100, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a CoDel.
+     *
+     * @param target the acceptable sojourn time
+     * @param interval how long sojourn times must stay above target before
+     *        dropping starts; about the time a consumer needs to react
+     * @param unit the time unit of target and interval
+     * @throws IllegalArgumentException if target or interval is not positive
+     */
+    public CoDel(long target, long interval, TimeUnit unit) {
+        this.targetNanos = unit.toNanos(target);
+        this.intervalNanos = unit.toNanos(interval);
+        if (targetNanos <= 0 || intervalNanos <= 0)
+            throw new IllegalArgumentException();
+    }
+
+    /**
+     * Decides about an element just taken from the queue.
+     *
+     * @param sojournNanos how long the element was queued
+     * @param now the current {@link System#nanoTime}
+     * @return {@code true} to drop the element
+     */
+    boolean shouldDrop(long sojournNanos, long now) {
+        if (sojournNanos < targetNanos) {
+            firstAboveTime = 0L;
+            dropping = false;
+            return false;
+        }
+        if (firstAboveTime == 0L) {
+            firstAboveTime = now + intervalNanos;
+            return false;
+        }
+        if (!dropping) {
+            if (now - firstAboveTime < 0)
+                return false;
+            dropping = true;
+            // Resume near the previous drop rate if dropping stopped only
+            // shortly ago.
+            count = (count > 2 && now - dropNext < 16 * intervalNanos) ? count - 2 : 1;
+            dropNext = controlLaw(now);
+            drops++;
+            return true;
+        }
+        if (now - dropNext < 0)
+            return false;
+        count++;
+        dropNext = controlLaw(dropNext);
+        drops++;
+        return true;
+    }
+
+    private long controlLaw(long t) {
+        return t + (long) (intervalNanos / Math.sqrt(count));
+    }
+
+    /**
+     * Returns whether this CoDel is currently dropping.
+     *
+     * @return {@code true} if in the dropping state
+     */
+    public boolean isDropping() {
+        return dropping;
+    }
+
+    /**
+     * Returns the number of elements this CoDel has dropped.
+     *
+     * @return the number of drops
+     */
+    public long drops() {
+        return drops;
+    }
+
+}
@@ -0,0 +1,69 @@
+package test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a {@link SomeJournalQueue} forces written pages of its
+ * journal or checkpoint to the storage device.
+ *
+ * <p>Without a force, a write to a memory-mapped file survives a crash of
+ * the process but not of the machine; the operating system writes dirty
+ * pages back on its own schedule.  The fewer forces, the more writes are
+ * at risk and the cheaper each write is.
+ *
+ * @author skywalker
+ */
+public interface FsyncPolicy {
+
+    /**
+     * Called after each write.
+     *
+     * @param unsyncedWrites the number of writes since the last force,
+     *        this one included
+     * @param nanosSinceSync nanoseconds since the last force
+     * @return {@code true} to force now
+     */
+    boolean shouldSync(int unsyncedWrites, long nanosSinceSync);
+
+    /**
+     * Never forces; pages are written back by the operating system, and
+     * forced when a segment is full and when the queue is closed.
+     */
+    static FsyncPolicy never() {
+        return (writes, nanos) -> false;
+    }
+
+    /**
+     * Forces after every write.  Nothing acknowledged is lost, at the
+     * cost of a device flush per operation.
+     */
+    static FsyncPolicy always() {
+        return (writes, nanos) -> true;
+    }
+
+    /**
+     * Forces after the given number of writes.
+     *
+     * @param writes the number of writes per force
+     */
+    static FsyncPolicy everyWrites(int writes) {
+        if (writes <= 0)
+            throw new IllegalArgumentException();
+        return (n, nanos) -> n >= writes;
+    }
+
+    /**
+     * Forces on the first write after the given time has passed since the
+     * last force.  Writes are not forced while the queue is idle.
+     *
+     * @param interval the minimum time between forces
+     * @param unit the time unit of the interval argument
+     */
+    static FsyncPolicy interval(long interval, TimeUnit unit) {
+        final long nanos = unit.toNanos(interval);
+        if (nanos <= 0)
+            throw new IllegalArgumentException();
+        return (n, elapsed) -> elapsed >= nanos;
+    }
+
+}
@@ -0,0 +1,149 @@
+package test;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * An unbounded thread-safe FIFO queue of {@code int} values.  It is
+ * {@link SomeSegmentQueue} specialised for a primitive element type:
+ * values are stored in {@code int[]} segments instead of being boxed
+ * and wrapped in a node each, and the queue is non-blocking in the same
+ * way.
+ *
+ * <p>{@link #EMPTY} plays the role {@code null} plays for
+ * {@link SomeQueue}: it is returned by {@link #poll} and {@link #peek}
+ * when the queue is empty, and it cannot be offered.
+ *
+ * <p>Apart from a new segment once per segment size values, neither
+ * {@code offer} nor {@code poll} nor {@link #drain} allocate.
+ *
+ * @author skywalker
+ * @see LongQueue
+ */
+public class IntQueue extends PrimitiveSegmentQueue {
+
+    /** Returned by poll and peek if the queue is empty; cannot be offered. */
+    public static final int EMPTY = Integer.MIN_VALUE;
+
+    /**
+     * Creates an empty queue with segments of 1024 slots.
+     */
+    public IntQueue() {
+        this(SomeSegmentQueue.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates an empty queue with segments of the given number of slots.
+     *
+     * @param segmentSize the number of slots per segment
+     * @throws IllegalArgumentException if {@code segmentSize} is less than 2
+     */
+    public IntQueue(int segmentSize) {
+        super(new Segment(checkSegmentSize(segmentSize)));
+    }
+
+    /**
+     * Inserts the specified value at the tail of this queue.
+     * As the queue is unbounded, this method will never return {@code false}.
+     *
+     * @param v the value
+     * @return {@code true}
+     * @throws IllegalArgumentException if the value is {@link #EMPTY}
+     */
+    public boolean offer(int v) {
+        if (v == EMPTY)
+            throw new IllegalArgumentException();
+        offerValue(v);
+        return true;
+    }
+
+    /**
+     * Retrieves and removes the head of this queue.
+     *
+     * @return the head of this queue, or {@link #EMPTY} if this queue is empty
+     */
+    public int poll() {
+        return (int) pollValue(EMPTY);
+    }
+
+    /**
+     * Removes up to {@code maxElements} values from the head of this queue
+     * and passes them to the consumer, in order.  Does not allocate.
+     *
+     * @param consumer receives the values
+     * @param maxElements the maximum number of values to remove
+     * @return the number of values removed
+     * @throws NullPointerException if the consumer is null
+     */
+    public int drain(IntConsumer consumer, int maxElements) {
+        if (consumer == null)
+            throw new NullPointerException();
+        int n = 0;
+        for (int v; n < maxElements && (v = poll()) != EMPTY; n++)
+            consumer.accept(v);
+        return n;
+    }
+
+    /**
+     * Removes all available values and passes them to the consumer, in
+     * order.  Does not allocate.
+     *
+     * @param consumer receives the values
+     * @return the number of values removed
+     * @throws NullPointerException if the consumer is null
+     */
+    public int drain(IntConsumer consumer) {
+        return drain(consumer, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Retrieves, but does not remove, the head of this queue.
+     *
+     * @return the head of this queue, or {@link #EMPTY} if this queue is empty
+     */
+    public int peek() {
+        return (int) peekValue(EMPTY);
+    }
+
+    /**
+     * Returns the values in this queue, in order.  The result is weakly
+     * consistent, like the iterator of {@link SomeSegmentQueue}.
+     *
+     * @return the values in this queue
+     */
+    public int[] toArray() {
+        long[] values = values();
+        int[] a = new int[values.length];
+        for (int i = 0; i < a.length; i++)
+            a[i] = (int) values[i];
+        return a;
+    }
+
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    static final class Segment extends PrimitiveSegmentQueue.Segment {
+        final int[] values;
+
+        Segment(int size) {
+            super(size);
+            values = new int[size];
+        }
+
+        @Override
+        Segment newSegment() {
+            return new Segment(values.length);
+        }
+
+        @Override
+        void set(int i, long v) {
+            values[i] = (int) v;
+        }
+
+        @Override
+        long get(int i) {
+            return values[i];
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package test;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * An unbounded thread-safe FIFO queue of {@code long} values.  It is
+ * {@link SomeSegmentQueue} specialised for a primitive element type:
+ * values are stored in {@code long[]} segments instead of being boxed
+ * and wrapped in a node each, and the queue is non-blocking in the same
+ * way.
+ *
+ * <p>{@link #EMPTY} plays the role {@code null} plays for
+ * {@link SomeQueue}: it is returned by {@link #poll} and {@link #peek}
+ * when the queue is empty, and it cannot be offered.
+ *
+ * <p>Apart from a new segment once per segment size values, neither
+ * {@code offer} nor {@code poll} nor {@link #drain} allocate.
+ *
+ * @author skywalker
+ * @see IntQueue
+ */
+public class LongQueue extends PrimitiveSegmentQueue {
+
+    /** Returned by poll and peek if the queue is empty; cannot be offered. */
+    public static final long EMPTY = Long.MIN_VALUE;
+
+    /**
+     * Creates an empty queue with segments of 1024 slots.
+     */
+    public LongQueue() {
+        this(SomeSegmentQueue.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates an empty queue with segments of the given number of slots.
+     *
+     * @param segmentSize the number of slots per segment
+     * @throws IllegalArgumentException if {@code segmentSize} is less than 2
+     */
+    public LongQueue(int segmentSize) {
+        super(new Segment(checkSegmentSize(segmentSize)));
+    }
+
+    /**
+     * Inserts the specified value at the tail of this queue.
+     * As the queue is unbounded, this method will never return {@code false}.
+     *
+     * @param v the value
+     * @return {@code true}
+     * @throws IllegalArgumentException if the value is {@link #EMPTY}
+     */
+    public boolean offer(long v) {
+        if (v == EMPTY)
+            throw new IllegalArgumentException();
+        offerValue(v);
+        return true;
+    }
+
+    /**
+     * Retrieves and removes the head of this queue.
+     *
+     * @return the head of this queue, or {@link #EMPTY} if this queue is empty
+     */
+    public long poll() {
+        return pollValue(EMPTY);
+    }
+
+    /**
+     * Removes up to {@code maxElements} values from the head of this queue
+     * and passes them to the consumer, in order.  Does not allocate.
+     *
+     * @param consumer receives the values
+     * @param maxElements the maximum number of values to remove
+     * @return the number of values removed
+     * @throws NullPointerException if the consumer is null
+     */
+    public int drain(LongConsumer consumer, int maxElements) {
+        if (consumer == null)
+            throw new NullPointerException();
+        int n = 0;
+        for (long v; n < maxElements && (v = poll()) != EMPTY; n++)
+            consumer.accept(v);
+        return n;
+    }
+
+    /**
+     * Removes all available values and passes them to the consumer, in
+     * order.  Does not allocate.
+     *
+     * @param consumer receives the values
+     * @return the number of values removed
+     * @throws NullPointerException if the consumer is null
+     */
+    public int drain(LongConsumer consumer) {
+        return drain(consumer, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Retrieves, but does not remove, the head of this queue.
+     *
+     * @return the head of this queue, or {@link #EMPTY} if this queue is empty
+     */
+    public long peek() {
+        return peekValue(EMPTY);
+    }
+
+    /**
+     * Returns the values in this queue, in order.  The result is weakly
+     * consistent, like the iterator of {@link SomeSegmentQueue}.
+     *
+     * @return the values in this queue
+     */
+    public long[] toArray() {
+        return values();
+    }
+
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    static final class Segment extends PrimitiveSegmentQueue.Segment {
+        final long[] values;
+
+        Segment(int size) {
+            super(size);
+            values = new long[size];
+        }
+
+        @Override
+        Segment newSegment() {
+            return new Segment(values.length);
+        }
+
+        @Override
+        void set(int i, long v) {
+            values[i] = v;
+        }
+
+        @Override
+        long get(int i) {
+            return values[i];
+        }
+    }
+}
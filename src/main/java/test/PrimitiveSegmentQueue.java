@@ -0,0 +1,268 @@
+package test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * The part of {@link LongQueue} and {@link IntQueue} that does not depend
+ * on the element type.  Values are passed around as {@code long}s; each
+ * subclass stores them in segments of its own primitive type and narrows
+ * them back on the way out.
+ *
+ * @author skywalker
+ */
+abstract class PrimitiveSegmentQueue extends PrimitiveSegmentQueuePad2 {
+
+    /*
+     * The algorithm is that of SomeSegmentQueue.  As a primitive slot has
+     * no spare value to mark "not written yet" and "taken", each segment
+     * has a parallel array of slot states:
+     *
+     * - a producer writes value i plainly and then CASes state i from
+     *   FREE to FULL, which publishes the value;
+     * - a consumer swaps state i with TAKEN and reads value i if it got
+     *   FULL.  If it got FREE, the slot is poisoned and the producer's
+     *   CAS fails.
+     */
+
+    static final int FREE = 0;
+    static final int FULL = 1;
+    static final int TAKEN = 2;
+
+    final int segmentSize;
+
+    /**
+     * @param first the initial, empty segment; its size is the size of
+     *        every segment of this queue
+     */
+    PrimitiveSegmentQueue(Segment first) {
+        this.segmentSize = first.states.length();
+        head = tail = first;
+    }
+
+    static int checkSegmentSize(int segmentSize) {
+        if (segmentSize < 2)
+            throw new IllegalArgumentException();
+        return segmentSize;
+    }
+
+    final void offerValue(long v) {
+        final int size = segmentSize;
+        for (;;) {
+            Segment t = tail;
+            int i = t.nextEnqIndex();
+            if (i < size) {
+                t.set(i, v);
+                if (t.states.compareAndSet(i, FREE, FULL))
+                    return;
+                // Poisoned by a consumer; take another slot.
+                continue;
+            }
+            if (t != tail)
+                continue;
+            Segment next = t.next;
+            if (next == null) {
+                // The first value is published together with the segment.
+                Segment s = t.newSegment();
+                s.set(0, v);
+                s.states.lazySet(0, FULL);
+                s.enqIdx = 1;
+                if (t.casNext(null, s)) {
+                    casTail(t, s);  // Failure is OK.
+                    return;
+                }
+            }
+            else
+                casTail(t, next);
+        }
+    }
+
+    /**
+     * @param empty the value to return if this queue is empty
+     */
+    final long pollValue(long empty) {
+        final int size = segmentSize;
+        for (;;) {
+            Segment h = head;
+            if (h.deqIdx >= h.enqIdx && h.next == null)
+                return empty;
+            int i = h.nextDeqIndex();
+            if (i < size) {
+                if (h.states.getAndSet(i, TAKEN) == FULL)
+                    return h.get(i);
+                // The producer of slot i has not written yet.
+                continue;
+            }
+            Segment next = h.next;
+            if (next == null)
+                return empty;
+            casHead(h, next);
+        }
+    }
+
+    /**
+     * @param empty the value to return if this queue is empty
+     */
+    final long peekValue(long empty) {
+        for (Segment s = head; s != null; s = s.next) {
+            int end = Math.min(s.enqIdx, segmentSize);
+            for (int i = s.deqIdx; i < end; i++)
+                if (s.states.get(i) == FULL)
+                    return s.get(i);
+        }
+        return empty;
+    }
+
+    /**
+     * Returns {@code true} if this queue contains no values.
+     *
+     * @return {@code true} if this queue contains no values
+     */
+    public boolean isEmpty() {
+        for (Segment s = head; s != null; s = s.next) {
+            int end = Math.min(s.enqIdx, segmentSize);
+            for (int i = s.deqIdx; i < end; i++)
+                if (s.states.get(i) == FULL)
+                    return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of values in this queue, derived from the
+     * segment indices like {@link SomeSegmentQueue#size}.  It may be
+     * inaccurate if this queue is modified concurrently.
+     *
+     * @return the number of values in this queue
+     */
+    public int size() {
+        final int size = segmentSize;
+        long count = 0;
+        for (Segment s = head; s != null; s = s.next) {
+            int enq = Math.min(s.enqIdx, size);
+            int deq = Math.min(s.deqIdx, size);
+            if (enq > deq)
+                count += enq - deq;
+        }
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the values in this queue, in order and widened to
+     * {@code long}.  The result is weakly consistent, like the iterator
+     * of {@link SomeSegmentQueue}.
+     */
+    final long[] values() {
+        final int size = segmentSize;
+        long[] a = new long[16];
+        int n = 0;
+        for (Segment s = head; s != null; s = s.next) {
+            int end = Math.min(s.enqIdx, size);
+            for (int i = Math.min(s.deqIdx, size); i < end; i++) {
+                if (s.states.get(i) != FULL)
+                    continue;
+                if (n == a.length)
+                    a = Arrays.copyOf(a, n << 1);
+                a[n++] = s.get(i);
+            }
+        }
+        return Arrays.copyOf(a, n);
+    }
+
+    /**
+     * A segment of slot states, with the values kept by the subclass in
+     * an array of its element type.
+     */
+    abstract static class Segment extends SomeSegmentQueue.SegmentPad2 {
+        private static final AtomicIntegerFieldUpdater<SomeSegmentQueue.SegmentEnq> ENQ_IDX =
+                AtomicIntegerFieldUpdater.newUpdater(SomeSegmentQueue.SegmentEnq.class, "enqIdx");
+        private static final AtomicIntegerFieldUpdater<SomeSegmentQueue.SegmentDeq> DEQ_IDX =
+                AtomicIntegerFieldUpdater.newUpdater(SomeSegmentQueue.SegmentDeq.class, "deqIdx");
+        private static final AtomicReferenceFieldUpdater<Segment, Segment> NEXT =
+                AtomicReferenceFieldUpdater.newUpdater(Segment.class, Segment.class, "next");
+
+        final AtomicIntegerArray states;
+        volatile Segment next;
+
+        Segment(int size) {
+            states = new AtomicIntegerArray(size);
+        }
+
+        /**
+         * Creates an empty segment of the same type and size.
+         */
+        abstract Segment newSegment();
+
+        /**
+         * Writes value i plainly; it is published by the state CAS.
+         */
+        abstract void set(int i, long v);
+
+        abstract long get(int i);
+
+        int nextEnqIndex() {
+            return ENQ_IDX.getAndIncrement(this);
+        }
+
+        int nextDeqIndex() {
+            return DEQ_IDX.getAndIncrement(this);
+        }
+
+        boolean casNext(Segment cmp, Segment val) {
+            return NEXT.compareAndSet(this, cmp, val);
+        }
+    }
+}
+
+/*
+ * head and tail are padded like SomeQueue's, see the note above
+ * SomeQueuePad0.
+ */
+
+abstract class PrimitiveSegmentQueuePad0 {
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
+
+abstract class PrimitiveSegmentQueueHead extends PrimitiveSegmentQueuePad0 {
+    private static final AtomicReferenceFieldUpdater<PrimitiveSegmentQueueHead, PrimitiveSegmentQueue.Segment> HEAD =
+            AtomicReferenceFieldUpdater.newUpdater(PrimitiveSegmentQueueHead.class,
+                    PrimitiveSegmentQueue.Segment.class, "head");
+
+    /**
+     * Segment consumers take values from; never null.
+     */
+    volatile PrimitiveSegmentQueue.Segment head;
+
+    final boolean casHead(PrimitiveSegmentQueue.Segment cmp, PrimitiveSegmentQueue.Segment val) {
+        return HEAD.compareAndSet(this, cmp, val);
+    }
+}
+
+abstract class PrimitiveSegmentQueuePad1 extends PrimitiveSegmentQueueHead {
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
+
+abstract class PrimitiveSegmentQueueTail extends PrimitiveSegmentQueuePad1 {
+    private static final AtomicReferenceFieldUpdater<PrimitiveSegmentQueueTail, PrimitiveSegmentQueue.Segment> TAIL =
+            AtomicReferenceFieldUpdater.newUpdater(PrimitiveSegmentQueueTail.class,
+                    PrimitiveSegmentQueue.Segment.class, "tail");
+
+    /**
+     * Segment producers add values to; the last segment can be reached
+     * from it.  Never null.
+     */
+    volatile PrimitiveSegmentQueue.Segment tail;
+
+    final boolean casTail(PrimitiveSegmentQueue.Segment cmp, PrimitiveSegmentQueue.Segment val) {
+        return TAIL.compareAndSet(this, cmp, val);
+    }
+}
+
+abstract class PrimitiveSegmentQueuePad2 extends PrimitiveSegmentQueueTail {
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
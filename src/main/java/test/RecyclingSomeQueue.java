@@ -0,0 +1,513 @@
+package test;
+
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A {@link SomeQueue} that recycles the nodes it unlinks instead of
+ * leaving them to the garbage collector.
+ *
+ * <p>Nodes dropped off the head by consumers are collected in per-thread
+ * batches and, once no thread can still hold a reference to them, handed
+ * to producers, which reuse them for new elements.  Reclamation is
+ * epoch-based: every operation on the queue runs inside a critical
+ * section that announces the epoch it started in, and a node is only
+ * reused after the global epoch has advanced far enough that every
+ * section that might have seen it has ended.  This is what protects the
+ * CAS loops of {@code SomeQueue} from ABA on recycled nodes.  To keep
+ * the chain of nodes behind head intact until it is retired,
+ * {@code remove(Object)} only clears the element and leaves the node
+ * to be dropped when head passes it.
+ *
+ * <p>{@link #poolHits} and {@link #poolMisses} count how many offers
+ * reused a node and how many had to allocate one.
+ *
+ * <p>Differences from {@code SomeQueue}: iterators and spliterators
+ * operate on a snapshot taken when they are created, because a weakly
+ * consistent iterator would have to keep a critical section open across
+ * calls.  {@code Iterator.remove} removes an element equal to the last
+ * one returned.  Nodes created by {@code addAll} are recycled but never
+ * taken from the pool, and each thread that uses the queue stays
+ * registered with it for the queue's lifetime.
+ *
+ * @author skywalker
+ * @param <E> the type of elements held in this collection
+ */
+public class RecyclingSomeQueue<E> extends SomeQueue<E> {
+
+    private static final long serialVersionUID = -3186012379126150741L;
+
+    /*
+     * Retiring.  updateHead retires every node from the old head up to
+     * the new one.  Only the thread that won the head CAS does so, and
+     * since interior nodes are never unlinked here, the next pointers
+     * on that stretch are stable: each node is retired exactly once.
+     *
+     * Epochs.  A thread entering a critical section writes the current
+     * global epoch into its Participant; leaving the outermost section
+     * writes QUIESCENT.  The global epoch is advanced from g to g + 1
+     * only when every participant is either quiescent or announced g.
+     * A node retired while the global epoch was e can be referenced
+     * only by sections that announced at most e, and those have all
+     * ended once the global epoch reached e + 2.
+     *
+     * Tail.  Head never points to a retired node, but tail can: an
+     * offer may lose its time slice between linking a node and moving
+     * tail to it, and move tail there after the node was consumed and
+     * retired.  That late CAS can only come from a section that was
+     * open when the node was retired, so once a batch of retired nodes
+     * has passed its first grace period, no one can set tail to any of
+     * them any more.  We then move tail off those nodes if needed and
+     * wait a second grace period, for sections that read the stale
+     * tail in the meantime, before the batch becomes reusable.
+     *
+     * Batches.  Retired nodes go into the retiring thread's limbo
+     * batch.  Full batches wait in the thread's pending list until both
+     * grace periods passed, then go to the shared ready ring, from
+     * which producers take them.  Producers return emptied batches
+     * through the spare ring, and consumers take new limbo batches
+     * from there, so in steady state neither side allocates.  Both
+     * rings are bounded SomeRingQueues; when one is full the batch is
+     * dropped and left to the garbage collector.
+     *
+     * Capacity.  The pool has to hold the nodes of a whole backlog:
+     * when producers run ahead of consumers for a while (always, on a
+     * single CPU, for the length of a time slice), every node of the
+     * backlog is retired in one go and has to wait there until
+     * producers need it again.  With 1024 batches (64K nodes), one
+     * producer and one consumer on a single CPU reused a node for only
+     * ~40% of offers; with 8192 batches, for ~95%.  The pool never holds
+     * more nodes than the queue held at once, so the cost of the larger
+     * bound is the two rings' arrays, 32K references in all.
+     */
+
+    private static final int BATCH_SIZE = 64;
+    private static final int RING_CAPACITY = 8192;
+    private static final long QUIESCENT = Long.MAX_VALUE;
+
+    static final class Batch<E> {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final SomeQueue.Node<E>[] nodes = (SomeQueue.Node<E>[]) new SomeQueue.Node[BATCH_SIZE];
+        int size;
+        /** Global epoch when the current grace period started */
+        long epoch;
+        /** Whether the first grace period has passed */
+        boolean tailChecked;
+        /** Next batch in the owner's pending list */
+        Batch<E> next;
+    }
+
+    static final class Participant<E> {
+        /** Announced epoch, or QUIESCENT; written only by the owner */
+        volatile long epoch = QUIESCENT;
+        /** Nesting depth of critical sections */
+        int depth;
+        /** Nodes retired by this thread */
+        Batch<E> limbo;
+        /** Full limbo batches waiting for their grace periods */
+        Batch<E> pendingHead, pendingTail;
+        /** Nodes available for reuse */
+        Batch<E> free;
+        /** Statistics, written only by the owner */
+        long hits, misses;
+    }
+
+    private final transient AtomicLong globalEpoch = new AtomicLong();
+    private final transient SomeQueue<Participant<E>> participants = new SomeQueue<>();
+    private final transient ThreadLocal<Participant<E>> participant =
+            ThreadLocal.withInitial(this::register);
+    private final transient SomeRingQueue<Batch<E>> ready = new SomeRingQueue<>(RING_CAPACITY);
+    private final transient SomeRingQueue<Batch<E>> spare = new SomeRingQueue<>(RING_CAPACITY);
+
+    /**
+     * Creates a {@code RecyclingSomeQueue} that is initially empty.
+     */
+    public RecyclingSomeQueue() {
+        super(false);
+    }
+
+    /**
+     * Creates a {@code RecyclingSomeQueue} that is initially empty,
+     * optionally in counting mode.
+     *
+     * @param counting whether to maintain an element count
+     * @see SomeQueue#SomeQueue(boolean)
+     */
+    public RecyclingSomeQueue(boolean counting) {
+        super(counting);
+    }
+
+    private Participant<E> register() {
+        Participant<E> p = new Participant<>();
+        participants.offer(p);
+        return p;
+    }
+
+    private Participant<E> enter() {
+        Participant<E> p = participant.get();
+        if (p.depth++ == 0)
+            // Volatile write followed by volatile reads of head/tail: the
+            // announcement is visible before any node is read.
+            p.epoch = globalEpoch.get();
+        return p;
+    }
+
+    private static void exit(Participant<?> p) {
+        if (--p.depth == 0)
+            p.epoch = QUIESCENT;
+    }
+
+    // Hooks called by SomeQueue, always inside a critical section
+
+    @Override
+    Node<E> newNode(E e) {
+        Participant<E> me = participant.get();
+        Batch<E> b = me.free;
+        if (b == null || b.size == 0) {
+            if (b != null)
+                spare.offer(b);
+            b = me.free = ready.poll();
+        }
+        if (b != null) {
+            int i = --b.size;
+            Node<E> n = b.nodes[i];
+            b.nodes[i] = null;
+            n.reinit(e);
+            me.hits++;
+            return n;
+        }
+        me.misses++;
+        // Timed in metrics mode, so that recycled nodes are timed too
+        return stampedNode(e);
+    }
+
+    @Override
+    void retire(Node<E> h, Node<E> p) {
+        Participant<E> me = participant.get();
+        // Nothing unlinks interior nodes, so h.next leads to p.
+        for (Node<E> n = h; n != p && n != null; ) {
+            Node<E> next = n.next;
+            Batch<E> b = me.limbo;
+            if (b == null) {
+                if ((b = spare.poll()) == null)
+                    b = new Batch<>();
+                me.limbo = b;
+            }
+            b.nodes[b.size++] = n;
+            if (b.size == BATCH_SIZE) {
+                me.limbo = null;
+                b.epoch = globalEpoch.get();
+                b.tailChecked = false;
+                append(me, b);
+                tryAdvance();
+                reclaim(me);
+            }
+            n = next;
+        }
+    }
+
+    @Override
+    boolean unlinksInterior() {
+        return false;
+    }
+
+    @Override
+    boolean recyclesNodes() {
+        return true;
+    }
+
+    private static <E> void append(Participant<E> me, Batch<E> b) {
+        b.next = null;
+        if (me.pendingTail == null)
+            me.pendingHead = me.pendingTail = b;
+        else
+            me.pendingTail = me.pendingTail.next = b;
+    }
+
+    /**
+     * Advances the global epoch if every participant has caught up with
+     * it.
+     */
+    private void tryAdvance() {
+        long g = globalEpoch.get();
+        for (Participant<E> p : participants) {
+            long e = p.epoch;
+            if (e != QUIESCENT && e != g)
+                return;
+        }
+        globalEpoch.compareAndSet(g, g + 1);
+    }
+
+    /**
+     * Moves pending batches whose grace period has passed on to their
+     * next stage.
+     */
+    private void reclaim(Participant<E> me) {
+        Batch<E> b;
+        while ((b = me.pendingHead) != null && globalEpoch.get() >= b.epoch + 2) {
+            if ((me.pendingHead = b.next) == null)
+                me.pendingTail = null;
+            if (!b.tailChecked) {
+                for (int i = 0; i < b.size; i++) {
+                    Node<E> n = b.nodes[i];
+                    if (tail == n)
+                        casTail(n, head);
+                }
+                b.tailChecked = true;
+                b.epoch = globalEpoch.get();
+                append(me, b);
+            } else {
+                ready.offer(b);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of offers that reused a recycled node.  The
+     * count is gathered from all threads without synchronization and may
+     * lag slightly.
+     *
+     * @return the number of pool hits
+     */
+    public long poolHits() {
+        long n = 0;
+        for (Participant<E> p : participants)
+            n += p.hits;
+        return n;
+    }
+
+    /**
+     * Returns the number of offers that found no recycled node and
+     * allocated a new one.
+     *
+     * @return the number of pool misses
+     */
+    public long poolMisses() {
+        long n = 0;
+        for (Participant<E> p : participants)
+            n += p.misses;
+        return n;
+    }
+
+    /**
+     * Returns the fraction of offers that reused a recycled node.
+     *
+     * @return the pool hit rate, or 0 if nothing was offered yet
+     */
+    public double poolHitRate() {
+        long hits = poolHits(), total = hits + poolMisses();
+        return (total == 0) ? 0.0 : (double) hits / total;
+    }
+
+    // Every operation that reads nodes runs in a critical section
+
+    @Override
+    public boolean offer(E e) {
+        Participant<E> p = enter();
+        try {
+            return super.offer(e);
+        } finally {
+            exit(p);
+        }
+    }
+
+    @Override
+    public E poll() {
+        Participant<E> p = enter();
+        try {
+            return super.poll();
+        } finally {
+            exit(p);
+        }
+    }
+
+    @Override
+    public E peek() {
+        Participant<E> p = enter();
+        try {
+            return super.peek();
+        } finally {
+            exit(p);
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        Participant<E> p = enter();
+        try {
+            return super.isEmpty();
+        } finally {
+            exit(p);
+        }
+    }
+
+    @Override
+    public int size() {
+        Participant<E> p = enter();
+        try {
+            return super.size();
+        } finally {
+            exit(p);
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        Participant<E> p = enter();
+        try {
+            return super.contains(o);
+        } finally {
+            exit(p);
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        Participant<E> p = enter();
+        try {
+            return super.remove(o);
+        } finally {
+            exit(p);
+        }
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends E> c) {
+        Participant<E> p = enter();
+        try {
+            return super.addAll(c);
+        } finally {
+            exit(p);
+        }
+    }
+
+    @Override
+    public int drain(Consumer<? super E> action, int maxElements) {
+        Participant<E> p = enter();
+        try {
+            return super.drain(action, maxElements);
+        } finally {
+            exit(p);
+        }
+    }
+
+    @Override
+    public Object[] toArray() {
+        Participant<E> p = enter();
+        try {
+            return super.toArray();
+        } finally {
+            exit(p);
+        }
+    }
+
+    @Override
+    public <T> T[] toArray(T[] a) {
+        Participant<E> p = enter();
+        try {
+            return super.toArray(a);
+        } finally {
+            exit(p);
+        }
+    }
+
+    @Override
+    public Spliterator<E> snapshotSpliterator(int maxElements) {
+        Participant<E> p = enter();
+        try {
+            return super.snapshotSpliterator(maxElements);
+        } finally {
+            exit(p);
+        }
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the elements in this queue,
+     * in proper sequence.  {@code remove} removes an element equal to the
+     * last one returned, if still present.
+     *
+     * @return an iterator over the elements in this queue in proper sequence
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new SnapshotItr(toArray());
+    }
+
+    private class SnapshotItr implements Iterator<E> {
+        private final Object[] elements;
+        private int cursor;
+        private Object lastRet;
+
+        SnapshotItr(Object[] elements) {
+            this.elements = elements;
+        }
+
+        public boolean hasNext() {
+            return cursor < elements.length;
+        }
+
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (cursor >= elements.length)
+                throw new NoSuchElementException();
+            return (E) (lastRet = elements[cursor++]);
+        }
+
+        public void remove() {
+            if (lastRet == null)
+                throw new IllegalStateException();
+            RecyclingSomeQueue.this.remove(lastRet);
+            lastRet = null;
+        }
+    }
+
+    /**
+     * Returns a {@link Spliterator} over a snapshot of the elements in
+     * this queue.  It reports {@link Spliterator#ORDERED},
+     * {@link Spliterator#NONNULL}, {@link Spliterator#SIZED} and
+     * {@link Spliterator#SUBSIZED}.
+     *
+     * @return a {@code Spliterator} over the elements in this queue
+     */
+    @Override
+    public Spliterator<E> spliterator() {
+        return Spliterators.spliterator(toArray(), Spliterator.ORDERED | Spliterator.NONNULL);
+    }
+
+    // Serialization goes through a snapshot, as the inherited writeObject
+    // would traverse nodes outside of a critical section.
+
+    private Object writeReplace() {
+        return new SerializationProxy(toArray(), isCounting());
+    }
+
+    private void readObject(ObjectInputStream s) throws InvalidObjectException {
+        throw new InvalidObjectException("Proxy required");
+    }
+
+    private static final class SerializationProxy implements java.io.Serializable {
+        private static final long serialVersionUID = 6224815204719843152L;
+
+        private final Object[] elements;
+        private final boolean counting;
+
+        SerializationProxy(Object[] elements, boolean counting) {
+            this.elements = elements;
+            this.counting = counting;
+        }
+
+        private Object readResolve() {
+            RecyclingSomeQueue<Object> q = new RecyclingSomeQueue<>(counting);
+            for (Object e : elements)
+                q.offer(e);
+            return q;
+        }
+    }
+}
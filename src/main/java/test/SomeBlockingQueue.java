@@ -0,0 +1,488 @@
+package test;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TransferQueue;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An unbounded {@link BlockingQueue} on top of {@link SomeQueue}.
+ *
+ * <p>Unlike a lock and {@code Condition} pair (see {@code condition.Demo}),
+ * neither side takes a lock: elements are handed off through
+ * {@code SomeQueue}, and what a consumer does while the queue is empty is
+ * decided by a {@link WaitStrategy}.  Consumers that park register
+ * themselves as waiters first, so {@code offer} only unparks someone when
+ * a consumer is actually waiting; otherwise it pays a single check of the
+ * (empty) waiter queue.
+ *
+ * <p>When a consumer is parked and the queue is empty, {@code offer}
+ * hands the element to that consumer directly instead of linking it
+ * into the queue for the consumer to poll again.  The same hand-off
+ * gives the {@link TransferQueue} methods: {@code tryTransfer} succeeds
+ * only through it, while {@code transfer} falls back to enqueueing the
+ * element and waits, spinning briefly and then parking, until a consumer
+ * has taken it; the consumer that takes it unparks the producer.
+ *
+ * <p>As the queue is unbounded, {@code put} and the timed {@code offer}
+ * never block.
+ *
+ * @author skywalker
+ * @param <E> the type of elements held in this collection
+ */
+public class SomeBlockingQueue<E> extends AbstractQueue<E> implements TransferQueue<E> {
+
+    /*
+     * A consumer that is about to park first offers itself to waiters
+     * and then checks the queue once more before parking.  A producer first
+     * offers its element and then checks waiters.  Both steps are CASes
+     * followed by volatile reads, so either the consumer sees the element
+     * or the producer sees the waiter; a wakeup cannot be lost.
+     *
+     * A producer removes the waiter it signals from waiters, so a consumer
+     * that wakes up (signalled, timed out or spuriously) removes itself,
+     * if still present, and registers again before the next park.  A
+     * signal can land on a consumer that has already woken up by itself;
+     * to keep the element from stranding behind other parked consumers, a
+     * consumer that was registered passes the signal on if it leaves
+     * elements behind.
+     *
+     * A registered consumer does not poll the queue again, it only checks
+     * that the queue is still empty before parking, since a producer may
+     * hand it an element meanwhile.  A producer hands off by polling a
+     * waiter and CASing its slot from null to the element; a consumer
+     * leaves by CASing its slot from null to CANCELLED, and if that fails
+     * it has been handed an element.  So each waiter ends up with exactly
+     * one outcome.  Producers only hand off while the queue is empty, so
+     * an element handed off never overtakes one offered before.
+     *
+     * A transferring producer that stops spinning registers a Transfer
+     * (its node, element and thread) in transfers and then checks its
+     * node once more before parking.  A consumer first empties a node
+     * (poll's CAS of item) and then checks transfers, unparking every
+     * producer whose node no longer holds its element.  As with waiters,
+     * either the producer sees its element taken or the consumer sees the
+     * registration.  Elements taken from the underlying queue directly,
+     * or through the iterator, are not noticed that way; the producer
+     * still parks for at most MAX_TRANSFER_PARK_NANOS at a time, so it
+     * finds out late rather than never.
+     */
+
+    /**
+     * Number of times transfer spins, waiting for its element to be
+     * taken, before it parks.
+     */
+    private static final int TRANSFER_SPINS = 100;
+
+    /**
+     * Longest park of transfer between two checks.  Consumers of this
+     * queue unpark the producer, so this only bounds how late transfer
+     * notices an element taken behind this queue's back.
+     */
+    private static final long MAX_TRANSFER_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final SomeQueue<E> queue;
+    private final SomeQueue<Waiter> waiters = new SomeQueue<>();
+    private final SomeQueue<Transfer> transfers = new SomeQueue<>();
+    private final WaitStrategy waitStrategy;
+
+    /**
+     * Creates an empty queue whose consumers spin briefly and then park.
+     */
+    public SomeBlockingQueue() {
+        this(WaitStrategy.spinThenPark(100));
+    }
+
+    /**
+     * Creates an empty queue whose consumers wait using the given strategy.
+     *
+     * @param waitStrategy what consumers do while the queue is empty
+     * @throws NullPointerException if the strategy is null
+     */
+    public SomeBlockingQueue(WaitStrategy waitStrategy) {
+        this(new SomeQueue<>(), waitStrategy);
+    }
+
+    /**
+     * Creates a blocking view of the given queue.  Elements offered to the
+     * underlying queue directly do not wake parked consumers.
+     *
+     * @param queue the queue holding the elements
+     * @param waitStrategy what consumers do while the queue is empty
+     * @throws NullPointerException if either argument is null
+     */
+    public SomeBlockingQueue(SomeQueue<E> queue, WaitStrategy waitStrategy) {
+        if (queue == null || waitStrategy == null)
+            throw new NullPointerException();
+        this.queue = queue;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue, waking a
+     * parked consumer if there is one.  As the queue is unbounded, this
+     * method will never return {@code false}, unless the underlying queue
+     * is indexed and already contains the element.
+     *
+     * @return {@code true} if the element was added to this queue, else
+     *         {@code false}
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e) {
+        if (tryTransfer(e))
+            return true;
+        if (!queue.offer(e))
+            return false;
+        if (!waiters.isEmpty())
+            signalWaiter();
+        return true;
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue.  It
+     * returns {@code false} only if the underlying queue is indexed and
+     * already contains the element, as {@link SomeQueue#add} does.
+     *
+     * @return {@code true} if this queue changed as a result of the call
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean add(E e) {
+        return offer(e);
+    }
+
+    /**
+     * Hands the element to a parked consumer, if there is one and the
+     * queue is empty.
+     *
+     * @return {@code true} if the element was handed off
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean tryTransfer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        if (waiters.isEmpty() || !queue.isEmpty())
+            return false;
+        for (Waiter w; (w = waiters.poll()) != null; ) {
+            if (w.hand(e)) {
+                LockSupport.unpark(w.thread);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hands the element to a parked consumer, or else inserts it at the
+     * tail of this queue and waits until a consumer has taken it.
+     *
+     * @throws NullPointerException if the specified element is null
+     * @throws IllegalStateException if the underlying queue is indexed and
+     *         already contains the element, which is then not transferred
+     * @throws UnsupportedOperationException if the underlying queue is a
+     *         {@link RecyclingSomeQueue}
+     * @throws InterruptedException if interrupted while waiting, in which
+     *         case the element is removed from this queue
+     */
+    public void transfer(E e) throws InterruptedException {
+        if (!tryTransfer(e) && !awaitTaken(e, false, 0L))
+            throw new IllegalStateException("Element already queued: " + e);
+    }
+
+    /**
+     * Hands the element to a parked consumer, or else inserts it at the
+     * tail of this queue and waits until a consumer has taken it or the
+     * timeout elapses.
+     *
+     * @return {@code true} if the element was taken, {@code false} if the
+     *         timeout elapsed first, in which case the element is removed
+     *         from this queue, or if the underlying queue is indexed and
+     *         already contains the element, which is then not enqueued
+     * @throws NullPointerException if the specified element is null
+     * @throws UnsupportedOperationException if the underlying queue is a
+     *         {@link RecyclingSomeQueue}
+     * @throws InterruptedException if interrupted while waiting, in which
+     *         case the element is removed from this queue
+     */
+    public boolean tryTransfer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        return tryTransfer(e) || awaitTaken(e, true, unit.toNanos(timeout));
+    }
+
+    public boolean hasWaitingConsumer() {
+        return !waiters.isEmpty();
+    }
+
+    /**
+     * Returns an estimate of the number of parked consumers.  This is an
+     * O(n) traversal of the waiters, and consumers that are just leaving
+     * may still be counted.
+     *
+     * @return the number of consumers waiting to receive elements
+     */
+    public int getWaitingConsumerCount() {
+        return waiters.size();
+    }
+
+    /**
+     * Enqueues e and waits until its node has been emptied, by a consumer
+     * or, when giving up, by this method.
+     *
+     * @return false if timed out; also false, at once, if the queue is
+     *         indexed and already holds e
+     */
+    private boolean awaitTaken(E e, boolean timed, long nanos) throws InterruptedException {
+        if (queue.recyclesNodes())
+            throw new UnsupportedOperationException("transfer on a RecyclingSomeQueue");
+        final long deadline = timed ? System.nanoTime() + nanos : 0L;
+        final SomeQueue.Node<E> node = queue.offerNode(e);
+        if (node == null)
+            return false;
+        if (!waiters.isEmpty())
+            signalWaiter();
+        Transfer t = null;
+        try {
+            for (int round = 0; node.item == e; round++) {
+                if (Thread.interrupted()) {
+                    if (queue.removeNode(node, e))
+                        throw new InterruptedException();
+                    // Taken meanwhile: report success, keep the interrupt
+                    Thread.currentThread().interrupt();
+                    return true;
+                }
+                if (timed && (nanos = deadline - System.nanoTime()) <= 0L)
+                    return !queue.removeNode(node, e);
+                if (round < TRANSFER_SPINS) {
+                    Thread.yield();
+                } else if (t == null) {
+                    // Register, then check once more before parking.
+                    t = new Transfer(node, e, Thread.currentThread());
+                    transfers.offer(t);
+                } else {
+                    LockSupport.parkNanos(this, timed ? Math.min(MAX_TRANSFER_PARK_NANOS, nanos)
+                            : MAX_TRANSFER_PARK_NANOS);
+                }
+            }
+            return true;
+        } finally {
+            if (t != null)
+                transfers.remove(t);
+        }
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue.  As the
+     * queue is unbounded, this method will never block.  If the
+     * underlying queue is indexed and already contains the element,
+     * nothing is inserted; use {@link #offer(Object)} to find out.
+     *
+     * @throws NullPointerException if the specified element is null
+     */
+    public void put(E e) {
+        offer(e);
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue.  As the
+     * queue is unbounded, this method will never block, and it returns
+     * {@code false} only as {@link #offer(Object)} does.
+     *
+     * @return {@code true} if the element was added to this queue, else
+     *         {@code false}
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit) {
+        return offer(e);
+    }
+
+    public E poll() {
+        E e = queue.poll();
+        if (e != null && !transfers.isEmpty())
+            signalTransfers();
+        return e;
+    }
+
+    public E take() throws InterruptedException {
+        return awaitElement(false, 0L);
+    }
+
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return awaitElement(true, unit.toNanos(timeout));
+    }
+
+    public E peek() {
+        return queue.peek();
+    }
+
+    /**
+     * Polls until an element is available, waiting between polls as the
+     * wait strategy says.
+     *
+     * @return the element, or null if timed and the deadline passed
+     */
+    private E awaitElement(boolean timed, long nanos) throws InterruptedException {
+        final long deadline = timed ? System.nanoTime() + nanos : 0L;
+        final WaitStrategy strategy = waitStrategy;
+        boolean parked = false;
+        for (int round = 0;; round++) {
+            E e = queue.poll();
+            if (e != null) {
+                if (!transfers.isEmpty())
+                    signalTransfers();
+                if (parked && !queue.isEmpty())
+                    signalWaiter();
+                return e;
+            }
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            if (timed && (nanos = deadline - System.nanoTime()) <= 0L)
+                return null;
+            long park = strategy.idle(round);
+            if (park <= 0L)
+                continue;
+            // Register, then check once more before parking.
+            Waiter w = new Waiter(Thread.currentThread());
+            waiters.offer(w);
+            if (queue.isEmpty()) {
+                if (timed && park > nanos)
+                    park = nanos;
+                if (park == WaitStrategy.PARK_UNTIL_SIGNALLED)
+                    LockSupport.park(this);
+                else
+                    LockSupport.parkNanos(this, park);
+                parked = true;
+            }
+            E handed = w.leave();
+            if (handed != null)
+                return handed;
+            waiters.remove(w);
+        }
+    }
+
+    private void signalWaiter() {
+        for (Waiter w; (w = waiters.poll()) != null; ) {
+            if (!w.isCancelled()) {
+                LockSupport.unpark(w.thread);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Unparks the producers whose transferred element has been taken.
+     */
+    private void signalTransfers() {
+        for (Transfer t : transfers) {
+            if (t.isTaken())
+                LockSupport.unpark(t.thread);
+        }
+    }
+
+    /**
+     * A producer parked in transfer until its element is taken.
+     */
+    private static final class Transfer {
+        final SomeQueue.Node<?> node;
+        final Object item;
+        final Thread thread;
+
+        Transfer(SomeQueue.Node<?> node, Object item, Thread thread) {
+            this.node = node;
+            this.item = item;
+            this.thread = thread;
+        }
+
+        boolean isTaken() {
+            return node.item != item;
+        }
+    }
+
+    /**
+     * A registered consumer, with the slot producers hand elements off in.
+     */
+    private static final class Waiter {
+        private static final Object CANCELLED = new Object();
+        private static final AtomicReferenceFieldUpdater<Waiter, Object> ITEM =
+                AtomicReferenceFieldUpdater.newUpdater(Waiter.class, Object.class, "item");
+
+        final Thread thread;
+        /** null while waiting, then the handed element or CANCELLED */
+        private volatile Object item;
+
+        Waiter(Thread thread) {
+            this.thread = thread;
+        }
+
+        boolean hand(Object e) {
+            return item == null && ITEM.compareAndSet(this, null, e);
+        }
+
+        /**
+         * Stops accepting elements.
+         *
+         * @return the element handed off before, or null
+         */
+        @SuppressWarnings("unchecked")
+        <E> E leave() {
+            if (ITEM.compareAndSet(this, null, CANCELLED))
+                return null;
+            return (E) item;
+        }
+
+        boolean isCancelled() {
+            return item == CANCELLED;
+        }
+    }
+
+    /**
+     * Always returns {@code Integer.MAX_VALUE} because the queue is
+     * unbounded.
+     *
+     * @return {@code Integer.MAX_VALUE} (as specified by
+     *         {@link BlockingQueue#remainingCapacity})
+     */
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        int n = queue.drainTo(c, maxElements);
+        if (n > 0 && !transfers.isEmpty())
+            signalTransfers();
+        return n;
+    }
+
+    public boolean contains(Object o) {
+        return queue.contains(o);
+    }
+
+    public boolean remove(Object o) {
+        boolean removed = queue.remove(o);
+        if (removed && !transfers.isEmpty())
+            signalTransfers();
+        return removed;
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    public Iterator<E> iterator() {
+        return queue.iterator();
+    }
+
+}
@@ -0,0 +1,267 @@
+package test;
+
+import org.junit.Assert;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link SomeBlockingQueue}的直接交付(hand-off)与{@link java.util.concurrent.TransferQueue}方法的并发测试.
+ * <p>
+ * 覆盖: 生产者混用offer/transfer/tryTransfer、消费者混用take/poll时每个元素恰好交付一次; 超时的tryTransfer
+ * 把元素移出队列; transfer被中断时要么抛出InterruptedException并且元素不会被取走, 要么元素已被取走并正常返回;
+ * 消费者取走元素后立即唤醒transfer中park的生产者; 索引模式下重复的元素不能transfer.
+ * </p>
+ *
+ * @author skywalker
+ */
+public class SomeBlockingQueueStress {
+
+    private static final int PRODUCERS = 3;
+    private static final int CONSUMERS = 2;
+    private static final int PER_PRODUCER = 20_000;
+    private static final int INTERRUPT_ROUNDS = 2_000;
+
+    /**
+     * 元素的交付结果.
+     */
+    private static final int NOT_SENT = 1, SENT = 2, TRANSFERRED = 3;
+
+    /**
+     * 每个元素要么恰好被取走一次, 要么(tryTransfer失败)从未被取走; transfer和成功的tryTransfer返回时元素已被取走.
+     */
+    @org.junit.Test
+    public void exactlyOnce() throws Exception {
+        SomeBlockingQueue<Integer> queue = new SomeBlockingQueue<>();
+        int total = PRODUCERS * PER_PRODUCER;
+        int[] outcomes = new int[total];
+        Map<Integer, Integer> received = new ConcurrentHashMap<>();
+        AtomicInteger producing = new AtomicInteger(PRODUCERS);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            int first = p * PER_PRODUCER;
+            threads.add(new Thread(() -> {
+                try {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = first; i < first + PER_PRODUCER; i++) {
+                        Integer e = i;
+                        switch (random.nextInt(4)) {
+                            case 0:
+                                queue.offer(e);
+                                outcomes[i] = SENT;
+                                break;
+                            case 1:
+                                queue.transfer(e);
+                                outcomes[i] = TRANSFERRED;
+                                // 返回时必须已被取走, 消费者记录在取走之后, 所以只能在结束时检查
+                                break;
+                            case 2:
+                                outcomes[i] = queue.tryTransfer(e) ? TRANSFERRED : NOT_SENT;
+                                break;
+                            default:
+                                outcomes[i] = queue.tryTransfer(e, random.nextInt(50), TimeUnit.MICROSECONDS)
+                                        ? TRANSFERRED : NOT_SENT;
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    producing.decrementAndGet();
+                }
+            }));
+        }
+        for (int c = 0; c < CONSUMERS; c++) {
+            threads.add(new Thread(() -> {
+                try {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (;;) {
+                        Integer e;
+                        switch (random.nextInt(3)) {
+                            case 0:
+                                e = queue.poll();
+                                break;
+                            case 1:
+                                e = queue.poll(1, TimeUnit.MILLISECONDS);
+                                break;
+                            default:
+                                // 用较长的超时代替take, 生产者都结束之后take可能永远等下去
+                                e = queue.poll(10, TimeUnit.MILLISECONDS);
+                        }
+                        if (e != null)
+                            received.merge(e, 1, Integer::sum);
+                        else if (producing.get() == 0 && queue.isEmpty())
+                            return;
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }));
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads) {
+            t.join(TimeUnit.MINUTES.toMillis(2));
+            Assert.assertFalse("Stuck: " + t, t.isAlive());
+        }
+        Assert.assertNull(failure.get());
+        int[] counts = new int[4];
+        for (int i = 0; i < total; i++) {
+            counts[outcomes[i]]++;
+            int times = received.getOrDefault(i, 0);
+            if (outcomes[i] == NOT_SENT)
+                Assert.assertEquals("Element " + i + " was not sent", 0, times);
+            else
+                Assert.assertEquals("Element " + i, 1, times);
+        }
+        System.out.println("not sent " + counts[NOT_SENT] + ", sent " + counts[SENT]
+                + ", transferred " + counts[TRANSFERRED]);
+    }
+
+    /**
+     * 没有消费者时超时的tryTransfer返回false, 元素不留在队列里.
+     */
+    @org.junit.Test
+    public void timedTryTransferRemoves() throws InterruptedException {
+        SomeBlockingQueue<String> queue = new SomeBlockingQueue<>();
+        queue.offer("a");
+        Assert.assertFalse(queue.tryTransfer("b", 20, TimeUnit.MILLISECONDS));
+        Assert.assertFalse(queue.contains("b"));
+        Assert.assertEquals(Arrays.asList("a"), new ArrayList<>(queue));
+        Assert.assertEquals("a", queue.poll());
+        Assert.assertNull(queue.poll());
+    }
+
+    /**
+     * 中断与消费者同时发生: 要么抛出InterruptedException并且元素没有被取走、不在队列里, 要么元素已被取走,
+     * transfer正常返回并保留中断状态.
+     */
+    @org.junit.Test
+    public void interruptedTransfer() throws Exception {
+        Map<String, Long> outcomes = new TreeMap<>();
+        for (int round = 0; round < INTERRUPT_ROUNDS; round++) {
+            SomeBlockingQueue<Integer> queue = new SomeBlockingQueue<>();
+            Integer e = 1000 + round;
+            AtomicReference<String> result = new AtomicReference<>();
+            Thread producer = new Thread(() -> {
+                try {
+                    queue.transfer(e);
+                    result.set(Thread.currentThread().isInterrupted() ? "taken, interrupted" : "taken");
+                } catch (InterruptedException ex) {
+                    result.set("interrupted");
+                }
+            });
+            producer.start();
+            while (queue.isEmpty())
+                Thread.yield();
+            // 有时等到生产者park之后
+            if ((round & 1) == 0)
+                LockSupport.parkNanos(ThreadLocalRandom.current().nextInt(200_000));
+            CyclicBarrier start = new CyclicBarrier(2);
+            AtomicReference<Integer> polled = new AtomicReference<>();
+            Thread consumer = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (Exception ignore) {
+                }
+                polled.set(queue.poll());
+            });
+            consumer.start();
+            start.await();
+            producer.interrupt();
+            consumer.join();
+            producer.join(TimeUnit.SECONDS.toMillis(10));
+            Assert.assertFalse("transfer did not return", producer.isAlive());
+            String r = result.get();
+            if (r.equals("interrupted")) {
+                Assert.assertNull(r, polled.get());
+                Assert.assertTrue(r, queue.isEmpty());
+            } else {
+                Assert.assertEquals(r, e, polled.get());
+            }
+            outcomes.merge(r, 1L, Long::sum);
+        }
+        System.out.println(outcomes);
+    }
+
+    /**
+     * 生产者已经park时, 消费者取走元素后立即唤醒它, 而不是等park超时(每次最多park 10ms, 只靠超时的话延迟的中位数
+     * 是毫秒级的).
+     */
+    @org.junit.Test
+    public void transferWakesPromptly() throws Exception {
+        int rounds = 21;
+        long[] lags = new long[rounds];
+        for (int round = 0; round < rounds; round++) {
+            SomeBlockingQueue<Integer> queue = new SomeBlockingQueue<>();
+            AtomicBoolean done = new AtomicBoolean();
+            long[] returned = new long[1];
+            Thread producer = new Thread(() -> {
+                try {
+                    queue.transfer(1);
+                    returned[0] = System.nanoTime();
+                    done.set(true);
+                } catch (InterruptedException ignore) {
+                }
+            });
+            producer.start();
+            // 等生产者停止自旋并park, 再等它park一会儿
+            while (producer.getState() != Thread.State.TIMED_WAITING)
+                Thread.yield();
+            Thread.sleep(20);
+            long taken = System.nanoTime();
+            Assert.assertEquals(Integer.valueOf(1), queue.poll());
+            producer.join();
+            Assert.assertTrue(done.get());
+            lags[round] = returned[0] - taken;
+        }
+        Arrays.sort(lags);
+        System.out.println("median lag " + lags[rounds / 2] / 1000 + "us");
+        Assert.assertTrue("median lag " + lags[rounds / 2] + "ns", lags[rounds / 2] < TimeUnit.MICROSECONDS.toNanos(300));
+    }
+
+    /**
+     * 索引模式下队列中已有的元素不能再transfer.
+     */
+    @org.junit.Test
+    public void transferIndexedDuplicate() throws InterruptedException {
+        SomeBlockingQueue<String> queue = new SomeBlockingQueue<>(
+                new SomeQueue<>(false, SomeQueue.IndexMode.EQUALITY), WaitStrategy.spinThenPark(100));
+        queue.offer("a");
+        try {
+            queue.transfer("a");
+            Assert.fail("transfer of a duplicate returned");
+        } catch (IllegalStateException expected) {
+        }
+        Assert.assertFalse(queue.tryTransfer("a", 1, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(1, queue.size());
+    }
+
+    /**
+     * 索引模式下重复的元素不入队, offer/add返回false.
+     */
+    @org.junit.Test
+    public void offerIndexedDuplicate() {
+        SomeBlockingQueue<String> queue = new SomeBlockingQueue<>(
+                new SomeQueue<>(false, SomeQueue.IndexMode.EQUALITY), WaitStrategy.spinThenPark(100));
+        Assert.assertTrue(queue.offer("a"));
+        Assert.assertFalse(queue.offer("a"));
+        Assert.assertFalse(queue.add("a"));
+        Assert.assertFalse(queue.offer("a", 1, TimeUnit.MILLISECONDS));
+        queue.put("a");
+        Assert.assertTrue(queue.add("b"));
+        Assert.assertEquals(Arrays.asList("a", "b"), new ArrayList<>(queue));
+    }
+
+}
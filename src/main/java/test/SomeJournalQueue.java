@@ -0,0 +1,604 @@
+package test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An unbounded thread-safe FIFO queue whose elements live in a journal of
+ * memory-mapped files, so that they survive a restart.
+ *
+ * <p>{@link SomeQueue} can only be saved by serializing the whole list.
+ * This queue instead appends each element, encoded by a {@link Codec}, to
+ * the current journal segment, a file mapped with
+ * {@link FileChannel#map}, and keeps the position of the next element to
+ * take in a small checkpoint file.  Opening an existing directory only
+ * maps the checkpoint and the segments and finds the end of the last
+ * one; elements are decoded as they are polled.
+ *
+ * <p>When writes are forced to the device is up to a {@link FsyncPolicy},
+ * for the journal and the checkpoint alike.  Elements polled but not yet
+ * forced to the checkpoint are delivered again after a crash, so the
+ * queue delivers at least once.
+ *
+ * <p>Producers and consumers each take their own lock, as in
+ * {@link java.util.concurrent.LinkedBlockingQueue}, so an offer and a poll
+ * never wait for each other.  The journal is append-only: iterators are
+ * snapshots, and neither they nor {@link #remove(Object)} can remove
+ * elements.
+ *
+ * @author skywalker
+ * @param <E> the type of elements held in this collection
+ */
+public class SomeJournalQueue<E> extends AbstractQueue<E> implements Closeable {
+
+    /*
+     * A segment is a file of segmentSize bytes, named after the position
+     * of its first byte; positions are global byte offsets, so segment
+     * bases are multiples of segmentSize.  A record is
+     *
+     *   length + 1 (int) | CRC32 of the payload (int) | payload
+     *
+     * padded to a multiple of 8.  A length field of 0 means no record
+     * (mapped files start out zeroed), END_OF_SEGMENT that the next
+     * record is in the next segment.
+     *
+     * The producer writes the payload and the CRC before the length, and
+     * then publishes the end of the record through the volatile
+     * committed; consumers never read past committed.  When a segment is
+     * full, the producer forces it before moving on, so only the last
+     * segment can hold a torn record after a crash.
+     *
+     * Recovery reads the read position from the checkpoint, deletes
+     * segments that are entirely behind it, and walks the records of the
+     * last segment, checking CRCs, to find where the producer left off.
+     * A torn record ends the journal, and the rest of the segment is
+     * cleared and forced before any append: an older record left behind
+     * it would otherwise be accepted again by the next recovery, once a
+     * later append happens to end right where that record starts.
+     */
+
+    /** Encodes elements into journal records and decodes them back. */
+    public interface Codec<E> {
+
+        /**
+         * Encodes the element.
+         *
+         * @param e the element, not null
+         * @return the bytes of the record
+         */
+        byte[] encode(E e);
+
+        /**
+         * Decodes an element from the remaining bytes of the buffer.
+         *
+         * @param src a read-only view of the record
+         * @return the element
+         */
+        E decode(ByteBuffer src);
+
+        /**
+         * Strings as UTF-8.
+         */
+        static Codec<String> utf8() {
+            return new Codec<String>() {
+                public byte[] encode(String s) {
+                    return s.getBytes(StandardCharsets.UTF_8);
+                }
+
+                public String decode(ByteBuffer src) {
+                    return StandardCharsets.UTF_8.decode(src).toString();
+                }
+            };
+        }
+
+        /**
+         * Any {@link Serializable} element, by Java serialization.
+         */
+        static <E extends Serializable> Codec<E> serializable() {
+            return new Codec<E>() {
+                public byte[] encode(E e) {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                        out.writeObject(e);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                    return bytes.toByteArray();
+                }
+
+                @SuppressWarnings("unchecked")
+                public E decode(ByteBuffer src) {
+                    byte[] b = new byte[src.remaining()];
+                    src.get(b);
+                    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(b))) {
+                        return (E) in.readObject();
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    } catch (ClassNotFoundException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+            };
+        }
+    }
+
+    static final int HEADER = 8;
+    static final int END_OF_SEGMENT = -1;
+
+    /** Default segment size, 16 MB */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 << 20;
+
+    static final String SEGMENT_SUFFIX = ".journal";
+    static final String CHECKPOINT = "checkpoint";
+
+    private final Path directory;
+    private final Codec<E> codec;
+    private final int segmentSize;
+    private final FsyncPolicy fsyncPolicy;
+
+    private final ReentrantLock putLock = new ReentrantLock();
+    private final ReentrantLock takeLock = new ReentrantLock();
+
+    // Guarded by putLock
+    private MappedByteBuffer writeSegment;
+    private long writeBase;
+    private int writeOffset;
+    private int unsyncedWrites;
+    private long lastWriteSync;
+
+    // Guarded by takeLock
+    private MappedByteBuffer readSegment;
+    private long readBase;
+    private final MappedByteBuffer checkpoint;
+    private int unsyncedReads;
+    private long lastReadSync;
+
+    /** End of the last complete record */
+    private volatile long committed;
+
+    /** Start of the next record to take */
+    private volatile long readPosition;
+
+    private volatile boolean closed;
+
+    /**
+     * Mapping of every segment from the first time it is mapped until it
+     * is consumed, by base.  Shared by both sides: a walk over the backlog
+     * reuses the segments poll and offer mapped, and nothing is mapped
+     * twice.
+     */
+    private final ConcurrentHashMap<Long, MappedByteBuffer> segments = new ConcurrentHashMap<>();
+
+    /**
+     * Opens the journal in the given directory, creating it if needed,
+     * with 16 MB segments and no forced writes.
+     *
+     * @param directory where segments and checkpoint are kept
+     * @param codec encodes and decodes elements
+     * @throws IOException if the journal cannot be opened
+     */
+    public SomeJournalQueue(Path directory, Codec<E> codec) throws IOException {
+        this(directory, codec, DEFAULT_SEGMENT_SIZE, FsyncPolicy.never());
+    }
+
+    /**
+     * Opens the journal in the given directory, creating it if needed.
+     *
+     * @param directory where segments and checkpoint are kept
+     * @param codec encodes and decodes elements
+     * @param segmentSize the size of a segment file in bytes; must be the
+     *        same each time the directory is opened
+     * @param fsyncPolicy when writes are forced to the device
+     * @throws IllegalArgumentException if {@code segmentSize} is not a
+     *         positive multiple of 8, or existing segments have another size
+     * @throws IOException if the journal cannot be opened
+     */
+    public SomeJournalQueue(Path directory, Codec<E> codec, int segmentSize, FsyncPolicy fsyncPolicy)
+            throws IOException {
+        if (directory == null || codec == null || fsyncPolicy == null)
+            throw new NullPointerException();
+        if (segmentSize < 2 * HEADER || (segmentSize & 7) != 0)
+            throw new IllegalArgumentException();
+        this.directory = directory;
+        this.codec = codec;
+        this.segmentSize = segmentSize;
+        this.fsyncPolicy = fsyncPolicy;
+        Files.createDirectories(directory);
+        checkpoint = map(directory.resolve(CHECKPOINT), 8);
+        recover();
+        lastWriteSync = lastReadSync = System.nanoTime();
+    }
+
+    private void recover() throws IOException {
+        long position = checkpoint.getLong(0);
+        TreeSet<Long> bases = new TreeSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long base = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                if (Files.size(file) != segmentSize)
+                    throw new IllegalArgumentException("Segment " + file + " is not " + segmentSize + " bytes");
+                if (base + segmentSize <= position)
+                    // Entirely consumed.
+                    Files.delete(file);
+                else
+                    bases.add(base);
+            }
+        }
+        readBase = position - position % segmentSize;
+        readSegment = segmentAt(readBase);
+        bases.add(readBase);
+
+        writeBase = bases.last();
+        writeSegment = segmentAt(writeBase);
+        int offset = 0;
+        CRC32 crc = new CRC32();
+        while (offset + HEADER <= segmentSize) {
+            int stored = writeSegment.getInt(offset);
+            if (stored == END_OF_SEGMENT) {
+                // Ended, but the next segment was never created.
+                offset = segmentSize;
+                break;
+            }
+            int length = stored - 1;
+            int recordLength = align(HEADER + length);
+            if (length < 0 || offset + recordLength > segmentSize
+                    || checksum(crc, writeSegment, offset + HEADER, length) != writeSegment.getInt(offset + 4)) {
+                // No record, or a torn one.
+                clear(writeSegment, offset);
+                break;
+            }
+            offset += recordLength;
+        }
+        writeOffset = offset;
+        committed = writeBase + offset;
+        if (position > committed)
+            // The checkpoint got to the device and the journal did not.
+            position = committed;
+        readPosition = position;
+    }
+
+    /**
+     * Zeroes the segment from offset on, and forces it if anything was
+     * left there.
+     */
+    private void clear(MappedByteBuffer segment, int offset) {
+        boolean dirty = false;
+        for (int i = offset; i < segmentSize; i += 8) {
+            // Only write what is not zero already, so that untouched pages
+            // of a fresh segment stay clean.
+            if (segment.getLong(i) != 0) {
+                segment.putLong(i, 0);
+                dirty = true;
+            }
+        }
+        if (dirty)
+            segment.force();
+    }
+
+    private static int checksum(CRC32 crc, ByteBuffer segment, int offset, int length) {
+        crc.reset();
+        crc.update(view(segment, offset, length));
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Appends the specified element to the journal.
+     * As the queue is unbounded, this method will never return {@code false}.
+     *
+     * @return {@code true} (as specified by {@link java.util.Queue#offer})
+     * @throws NullPointerException if the specified element is null
+     * @throws IllegalArgumentException if the encoded element does not fit
+     *         in a segment
+     * @throws UncheckedIOException if the next segment cannot be created
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        byte[] data = codec.encode(e);
+        int recordLength = align(HEADER + data.length);
+        if (recordLength > segmentSize)
+            throw new IllegalArgumentException("Element too large: " + data.length + " bytes");
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        final ReentrantLock putLock = this.putLock;
+        putLock.lock();
+        try {
+            ensureOpen();
+            if (writeOffset + recordLength > segmentSize)
+                roll();
+            MappedByteBuffer segment = writeSegment;
+            int offset = writeOffset;
+            ((Buffer) segment).position(offset + HEADER);
+            segment.put(data);
+            segment.putInt(offset + 4, (int) crc.getValue());
+            segment.putInt(offset, data.length + 1);
+            writeOffset = offset + recordLength;
+            committed = writeBase + writeOffset;
+            long now = System.nanoTime();
+            if (fsyncPolicy.shouldSync(++unsyncedWrites, now - lastWriteSync)) {
+                segment.force();
+                unsyncedWrites = 0;
+                lastWriteSync = now;
+            }
+        } finally {
+            putLock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Forces the full segment, marks its end and maps the next one.
+     */
+    private void roll() {
+        if (writeOffset + HEADER <= segmentSize)
+            writeSegment.putInt(writeOffset, END_OF_SEGMENT);
+        writeSegment.force();
+        try {
+            writeSegment = segmentAt(writeBase + segmentSize);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        writeBase += segmentSize;
+        writeOffset = 0;
+        unsyncedWrites = 0;
+        lastWriteSync = System.nanoTime();
+    }
+
+    public E poll() {
+        if (readPosition == committed)
+            return null;
+        final ReentrantLock takeLock = this.takeLock;
+        takeLock.lock();
+        try {
+            ensureOpen();
+            for (;;) {
+                long position = readPosition;
+                if (position == committed)
+                    return null;
+                int offset = (int) (position - readBase);
+                if (offset + HEADER > segmentSize || readSegment.getInt(offset) == END_OF_SEGMENT) {
+                    nextReadSegment();
+                    continue;
+                }
+                int length = readSegment.getInt(offset) - 1;
+                E e = codec.decode(view(readSegment, offset + HEADER, length));
+                advance(position + align(HEADER + length));
+                return e;
+            }
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * Moves the read position and records it in the checkpoint.
+     */
+    private void advance(long position) {
+        readPosition = position;
+        checkpoint.putLong(0, position);
+        long now = System.nanoTime();
+        if (fsyncPolicy.shouldSync(++unsyncedReads, now - lastReadSync)) {
+            checkpoint.force();
+            unsyncedReads = 0;
+            lastReadSync = now;
+        }
+    }
+
+    /**
+     * Moves on to the next segment and deletes the consumed one.
+     */
+    private void nextReadSegment() {
+        long consumed = readBase;
+        try {
+            readSegment = segmentAt(consumed + segmentSize);
+            readBase = consumed + segmentSize;
+            advance(readBase);
+            segments.remove(consumed);
+            // A mapping stays valid after its file is deleted.
+            Files.deleteIfExists(segment(consumed));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    public E peek() {
+        final ReentrantLock takeLock = this.takeLock;
+        takeLock.lock();
+        try {
+            Iterator<E> it = snapshot(1).iterator();
+            return it.hasNext() ? it.next() : null;
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns {@code true} if this queue contains no elements.
+     *
+     * @return {@code true} if this queue contains no elements
+     */
+    public boolean isEmpty() {
+        return readPosition == committed;
+    }
+
+    /**
+     * Returns the number of elements in this queue.  This is an O(n)
+     * walk over the record headers, like {@link SomeQueue#size} is over
+     * the nodes, and may be inaccurate if this queue is modified
+     * concurrently.
+     *
+     * @return the number of elements in this queue
+     */
+    public int size() {
+        final ReentrantLock takeLock = this.takeLock;
+        takeLock.lock();
+        try {
+            int[] count = new int[1];
+            walk((segment, offset, length) -> ++count[0] < Integer.MAX_VALUE);
+            return count[0];
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the elements in this queue,
+     * in proper sequence.  The iterator does not support removal.
+     *
+     * @return an iterator over the elements in this queue in proper sequence
+     */
+    public Iterator<E> iterator() {
+        final ReentrantLock takeLock = this.takeLock;
+        takeLock.lock();
+        try {
+            return Collections.unmodifiableList(snapshot(Integer.MAX_VALUE)).iterator();
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * Decodes up to max elements from the read position on.  Called with
+     * takeLock held.
+     */
+    private List<E> snapshot(int max) {
+        ensureOpen();
+        List<E> elements = new ArrayList<>();
+        walk((segment, offset, length) -> {
+            elements.add(codec.decode(view(segment, offset, length)));
+            return elements.size() < max;
+        });
+        return elements;
+    }
+
+    private interface RecordVisitor {
+        /**
+         * @return {@code false} to stop the walk
+         */
+        boolean visit(ByteBuffer segment, int offset, int length);
+    }
+
+    /**
+     * Visits the payload of every record between the read position and
+     * committed.  Called with takeLock held.
+     */
+    private void walk(RecordVisitor visitor) {
+        final long end = committed;
+        long position = readPosition;
+        long base = readBase;
+        ByteBuffer segment = readSegment;
+        try {
+            while (position < end) {
+                int offset = (int) (position - base);
+                if (offset + HEADER > segmentSize || segment.getInt(offset) == END_OF_SEGMENT) {
+                    base += segmentSize;
+                    segment = segmentAt(base);
+                    position = base;
+                    continue;
+                }
+                int length = segment.getInt(offset) - 1;
+                if (!visitor.visit(segment, offset + HEADER, length))
+                    return;
+                position += align(HEADER + length);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Not supported: the journal is append-only.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    public boolean remove(Object o) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Forces the journal and the checkpoint to the device and closes the
+     * queue; further operations throw {@link IllegalStateException}.
+     */
+    public void close() {
+        putLock.lock();
+        takeLock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            writeSegment.force();
+            checkpoint.force();
+        } finally {
+            takeLock.unlock();
+            putLock.unlock();
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed)
+            throw new IllegalStateException("Closed");
+    }
+
+    private Path segment(long base) {
+        return directory.resolve(String.format("%020d%s", base, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Returns the mapping of the segment at base, mapping it if no one
+     * has yet.
+     */
+    private MappedByteBuffer segmentAt(long base) throws IOException {
+        MappedByteBuffer segment = segments.get(base);
+        if (segment == null) {
+            // offer rolling onto a segment a walk is mapping: keep one
+            MappedByteBuffer mapped = map(segment(base), segmentSize);
+            segment = segments.putIfAbsent(base, mapped);
+            if (segment == null)
+                segment = mapped;
+        }
+        return segment;
+    }
+
+    private static MappedByteBuffer map(Path file, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static ByteBuffer view(ByteBuffer segment, int offset, int length) {
+        ByteBuffer view = segment.asReadOnlyBuffer();
+        ((Buffer) view).limit(offset + length);
+        ((Buffer) view).position(offset);
+        return view.slice();
+    }
+
+    private static int align(int length) {
+        return (length + 7) & ~7;
+    }
+}
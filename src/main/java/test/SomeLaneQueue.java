@@ -0,0 +1,331 @@
+package test;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * An unbounded queue made of several {@link SomeQueue} lanes, so that
+ * latency-sensitive elements are not stuck behind a burst of bulk work.
+ * Each element goes into the lane its classifier picks (or the lane
+ * given to {@link #offer(int, Object)}), is FIFO within that lane, and
+ * {@link #poll} chooses the lane to serve by one of two policies:
+ *
+ * <ul>
+ * <li>{@linkplain #strictPriority strict priority}: always the lowest
+ * numbered non-empty lane.  Lower lanes can starve higher ones;</li>
+ * <li>{@linkplain #weightedRoundRobin weighted round-robin}: lane
+ * {@code i} gets {@code weights[i]} turns out of every
+ * {@code sum(weights)}, interleaved as evenly as possible.  A turn
+ * whose lane is empty goes to the lowest numbered non-empty lane, so no
+ * capacity is wasted while the queue holds elements.</li>
+ * </ul>
+ *
+ * <p>Both offer and poll are lock-free: the lanes are {@code SomeQueue}s,
+ * and round-robin turns are handed out by a single atomic counter.  There
+ * is no ordering between lanes; in particular {@link #peek} only looks at
+ * the lanes in lane order and need not return what the next poll
+ * returns.
+ *
+ * <p>Every lane keeps statistics in a {@link SomeQueueMetrics}: offers,
+ * polls, and the queueing latency of the elements taken from it.  Of the
+ * contention counters only those of the underlying lane queue would be
+ * meaningful, so they stay 0 here.  Lanes are created in counting mode,
+ * so {@link #laneSize} is O(1), and timestamped mode, so offer and poll
+ * call {@link System#nanoTime} once each.
+ *
+ * @author skywalker
+ * @param <E> the type of elements held in this collection
+ */
+public class SomeLaneQueue<E> extends AbstractQueue<E> {
+
+    private final SomeQueue<E>[] lanes;
+    private final SomeQueueMetrics[] laneMetrics;
+    /** laneMetrics[i]::recordLatency, created once */
+    private final LongConsumer[] latencySinks;
+    private final ToIntFunction<? super E> classifier;
+
+    /** Lane of each round-robin turn, null for strict priority */
+    private final int[] schedule;
+    private final AtomicLong turn = new AtomicLong();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private SomeLaneQueue(int lanes, int[] schedule, ToIntFunction<? super E> classifier) {
+        if (classifier == null)
+            throw new NullPointerException();
+        this.lanes = (SomeQueue<E>[]) new SomeQueue[lanes];
+        this.laneMetrics = new SomeQueueMetrics[lanes];
+        this.latencySinks = new LongConsumer[lanes];
+        for (int i = 0; i < lanes; i++) {
+            this.lanes[i] = new SomeQueue<>(true, SomeQueue.IndexMode.NONE, true);
+            SomeQueueMetrics metrics = new SomeQueueMetrics();
+            this.laneMetrics[i] = metrics;
+            this.latencySinks[i] = metrics::recordLatency;
+        }
+        this.schedule = schedule;
+        this.classifier = classifier;
+    }
+
+    /**
+     * Creates a queue that always serves the lowest numbered non-empty
+     * lane.
+     *
+     * @param lanes the number of lanes
+     * @param classifier picks the lane of each offered element
+     * @param <E> the type of elements held in the queue
+     * @return the queue
+     * @throws IllegalArgumentException if lanes is not positive
+     * @throws NullPointerException if classifier is null
+     */
+    public static <E> SomeLaneQueue<E> strictPriority(int lanes, ToIntFunction<? super E> classifier) {
+        if (lanes <= 0)
+            throw new IllegalArgumentException();
+        return new SomeLaneQueue<>(lanes, null, classifier);
+    }
+
+    /**
+     * Creates a queue that serves lane {@code i} in {@code weights[i]}
+     * out of every {@code sum(weights)} polls, while it is not empty.
+     *
+     * @param weights the weight of each lane; the number of lanes is
+     *        {@code weights.length}
+     * @param classifier picks the lane of each offered element
+     * @param <E> the type of elements held in the queue
+     * @return the queue
+     * @throws IllegalArgumentException if there are no weights, a weight
+     *         is not positive, or the weights add up to more than 65536
+     * @throws NullPointerException if weights or classifier is null
+     */
+    public static <E> SomeLaneQueue<E> weightedRoundRobin(int[] weights, ToIntFunction<? super E> classifier) {
+        return new SomeLaneQueue<>(weights.length, schedule(weights), classifier);
+    }
+
+    /**
+     * Spreads the turns of each lane over the round, as the smooth
+     * weighted round-robin of nginx does: every turn, each lane earns its
+     * weight, and the richest lane gets the turn and pays the total.
+     * Weights 5, 1, 1 give a, a, b, a, c, a, a rather than a, a, a, a, a,
+     * b, c.
+     */
+    private static int[] schedule(int[] weights) {
+        if (weights.length == 0)
+            throw new IllegalArgumentException();
+        int total = 0;
+        for (int w : weights) {
+            if (w <= 0 || (total += w) > 1 << 16)
+                throw new IllegalArgumentException();
+        }
+        int[] schedule = new int[total];
+        int[] current = new int[weights.length];
+        for (int t = 0; t < total; t++) {
+            int best = 0;
+            for (int i = 0; i < weights.length; i++) {
+                current[i] += weights[i];
+                if (current[i] > current[best])
+                    best = i;
+            }
+            current[best] -= total;
+            schedule[t] = best;
+        }
+        return schedule;
+    }
+
+    /**
+     * Inserts the specified element at the tail of the lane picked by the
+     * classifier.
+     *
+     * @return {@code true} (as specified by {@link java.util.Queue#offer})
+     * @throws NullPointerException if the specified element is null
+     * @throws IndexOutOfBoundsException if the classifier picks no lane
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        return offer(classifier.applyAsInt(e), e);
+    }
+
+    /**
+     * Inserts the specified element at the tail of the given lane.
+     *
+     * @param lane the lane
+     * @param e the element to add
+     * @return {@code true} (as specified by {@link java.util.Queue#offer})
+     * @throws NullPointerException if the specified element is null
+     * @throws IndexOutOfBoundsException if there is no such lane
+     */
+    public boolean offer(int lane, E e) {
+        lanes[lane].offer(e);
+        laneMetrics[lane].offers.increment();
+        return true;
+    }
+
+    /**
+     * Retrieves and removes an element of the lane this poll serves, or
+     * of the lowest numbered non-empty lane if that one is empty.
+     *
+     * @return an element, or {@code null} if all lanes are empty
+     */
+    public E poll() {
+        int n = lanes.length;
+        int first = 0;
+        if (schedule != null) {
+            first = schedule[(int) Long.remainderUnsigned(turn.getAndIncrement(), schedule.length)];
+            E e = poll(first);
+            if (e != null)
+                return e;
+        }
+        for (int i = 0; i < n; i++) {
+            if (schedule != null && i == first)
+                continue;
+            E e = poll(i);
+            if (e != null)
+                return e;
+        }
+        laneMetrics[first].emptyPolls.increment();
+        return null;
+    }
+
+    /**
+     * Retrieves and removes the head of the given lane.
+     *
+     * @param lane the lane
+     * @return the head of the lane, or {@code null} if it is empty
+     * @throws IndexOutOfBoundsException if there is no such lane
+     */
+    public E poll(int lane) {
+        E e = lanes[lane].pollTimed(latencySinks[lane]);
+        if (e != null)
+            laneMetrics[lane].polls.increment();
+        return e;
+    }
+
+    /**
+     * Returns the head of the lowest numbered non-empty lane.
+     *
+     * @return an element, or {@code null} if all lanes are empty
+     */
+    public E peek() {
+        for (SomeQueue<E> lane : lanes) {
+            E e = lane.peek();
+            if (e != null)
+                return e;
+        }
+        return null;
+    }
+
+    public boolean isEmpty() {
+        for (SomeQueue<E> lane : lanes)
+            if (!lane.isEmpty())
+                return false;
+        return true;
+    }
+
+    /**
+     * Returns the number of elements in all lanes.  This is O(lanes):
+     * each lane's count is read separately, so the sum may be inaccurate
+     * under concurrent updates.
+     *
+     * @return the number of elements in this queue
+     */
+    public int size() {
+        long n = 0;
+        for (SomeQueue<E> lane : lanes)
+            n += lane.approximateSize();
+        return (int) Math.min(n, Integer.MAX_VALUE);
+    }
+
+    public boolean contains(Object o) {
+        for (SomeQueue<E> lane : lanes)
+            if (lane.contains(o))
+                return true;
+        return false;
+    }
+
+    public boolean remove(Object o) {
+        for (SomeQueue<E> lane : lanes)
+            if (lane.remove(o))
+                return true;
+        return false;
+    }
+
+    /**
+     * Returns the number of lanes.
+     *
+     * @return the number of lanes
+     */
+    public int lanes() {
+        return lanes.length;
+    }
+
+    /**
+     * Returns the number of elements in the given lane, in constant time.
+     * The result may be inaccurate if the lane is modified concurrently.
+     *
+     * @param lane the lane
+     * @return the depth of the lane
+     * @throws IndexOutOfBoundsException if there is no such lane
+     */
+    public int laneSize(int lane) {
+        return (int) Math.min(lanes[lane].approximateSize(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the statistics of the given lane: its offers and polls,
+     * the polls that found the whole queue empty on its turn, and the
+     * latency from offer to poll of its elements.
+     *
+     * @param lane the lane
+     * @return the statistics of the lane
+     * @throws IndexOutOfBoundsException if there is no such lane
+     */
+    public SomeQueueMetrics laneMetrics(int lane) {
+        return laneMetrics[lane];
+    }
+
+    /**
+     * Returns an iterator over the elements of all lanes, lane by lane.
+     * The returned iterator is weakly consistent.
+     *
+     * @return an iterator over the elements in this queue
+     */
+    public Iterator<E> iterator() {
+        return new Itr();
+    }
+
+    private class Itr implements Iterator<E> {
+        private int lane;
+        private Iterator<E> it = lanes[0].iterator();
+        /** The lane iterator that returned the last element, for remove */
+        private Iterator<E> lastRet;
+
+        public boolean hasNext() {
+            while (!it.hasNext()) {
+                if (++lane == lanes.length) {
+                    lane--;
+                    return false;
+                }
+                it = lanes[lane].iterator();
+            }
+            return true;
+        }
+
+        public E next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            E e = it.next();
+            lastRet = it;
+            return e;
+        }
+
+        public void remove() {
+            if (lastRet == null)
+                throw new IllegalStateException();
+            lastRet.remove();
+            lastRet = null;
+        }
+    }
+
+}
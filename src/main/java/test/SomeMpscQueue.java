@@ -0,0 +1,53 @@
+package test;
+
+/**
+ * An unbounded linked queue for any number of producer threads and
+ * exactly one consumer thread.
+ *
+ * <p>A producer swaps itself in as the new {@code tail} with a single
+ * {@code getAndSet}, which cannot fail, and then links the previous tail
+ * to its node with an ordered store; there is no retry loop and no tail
+ * hop as in {@link SomeQueue#offer}.  The consumer owns {@code head} and,
+ * like in {@link SomeSpscQueue}, needs no CAS.
+ *
+ * <p>Between the swap and the link the new node is not reachable from
+ * {@code head}.  If the consumer finds no successor while {@code tail}
+ * has already moved on, it spins until the link shows up, so
+ * {@code poll} only returns null when the queue really was empty.
+ *
+ * @author skywalker
+ * @param <E> the type of elements held in this collection
+ * @see SomeQueues#newQueue(SomeQueues.Topology)
+ */
+public class SomeMpscQueue<E> extends AbstractSomeLinkedQueue<E> {
+
+    /**
+     * Inserts the specified element at the tail of this queue.
+     *
+     * @return {@code true} (as specified by {@link java.util.Queue#offer})
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e) {
+        checkNotNull(e);
+        final Node<E> newNode = new Node<E>(e);
+        getAndSetTail(newNode).lazySetNext(newNode);
+        return true;
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, or returns null if
+     * this queue is empty.  Must only be called by the consumer thread.
+     */
+    public E poll() {
+        final Node<E> h = head;
+        Node<E> p = h.next;
+        if (p == null) {
+            if (h == tail)
+                return null;
+            // a producer is between getAndSetTail and lazySetNext
+            while ((p = h.next) == null)
+                Thread.yield();
+        }
+        return consumeSingle(h, p);
+    }
+}
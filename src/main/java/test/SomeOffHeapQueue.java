@@ -0,0 +1,414 @@
+package test;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.function.Consumer;
+
+/**
+ * A bounded multi-producer multi-consumer queue of byte messages, kept
+ * off the heap in one direct {@link ByteBuffer}.
+ *
+ * <p>{@link SomeQueue} keeps a node and the message array on the heap for
+ * every queued {@code byte[]}, and the collector has to trace all of
+ * them.  Here messages are copied into length-prefixed records of a ring
+ * buffer instead, so a large backlog is a single direct buffer the
+ * collector never looks into.  Consumers read records in place:
+ * {@link #poll(Consumer)} hands the handler a read-only view of the
+ * record, and the space is only recycled after the handler returns.
+ *
+ * <p>A {@code ByteBuffer} holds at most 2 GB, so the capacity is a power
+ * of two of at most 1 GB.  A message may be up to capacity / 2 - 8 bytes
+ * long: a record never wraps around the end of the buffer, and a record of
+ * at most half the capacity fits together with the padding in front of it
+ * wherever the tail is, so an empty queue always accepts it.
+ *
+ * @author skywalker
+ * @see buffer.BufferTest
+ */
+public class SomeOffHeapQueue extends SomeOffHeapQueuePad2 {
+
+    /*
+     * Positions (tail, head, released) only grow; a position p is at byte
+     * p & mask of the buffer, in lap p >>> capacityShift.  A record is an
+     * 8-byte header followed by the message, padded to a multiple of 8.
+     * The header is a single long so that it can be CASed:
+     *
+     *   lap (32 bits) | message length (30 bits) | state (2 bits)
+     *
+     * with state NONE (header is 0, record not written yet), COMMITTED
+     * or CONSUMED.
+     *
+     * - A producer claims a record by CASing tail forward, as long as the
+     *   claimed range stays within capacity bytes of released.  It copies
+     *   the message and then stores the COMMITTED header with release
+     *   semantics.  A record that would not fit before the end of the
+     *   buffer is preceded by a padding record, claimed with the same
+     *   CAS and written as CONSUMED right away.
+     * - A consumer reads the header at head; if it is COMMITTED it claims
+     *   the record by CASing head forward, runs the handler on the record
+     *   in place, and then stores the header as CONSUMED.  Padding is
+     *   skipped the same way.  A record whose producer is slow blocks the
+     *   records behind it, which keeps the queue FIFO.
+     * - Space is reclaimed in order: whoever finds a CONSUMED header at
+     *   released, behind head, CASes the header to 0, zeroes the record
+     *   and moves released past it.  The header CAS decides which thread
+     *   reclaims; the lap in the header keeps a thread with a stale
+     *   released from reclaiming a record of a later lap.  Consumers
+     *   reclaim after each record, producers when the queue looks full.
+     *
+     * Everything between tail and released + capacity is therefore zero,
+     * so a consumer reading ahead of the producers sees NONE.
+     */
+
+    static final int HEADER = 8;
+
+    static final int NONE = 0;
+    static final int COMMITTED = 1;
+    static final int CONSUMED = 2;
+
+    /** Largest capacity; a ByteBuffer cannot hold 2 GB. */
+    static final int MAX_CAPACITY = 1 << 30;
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final int mask;
+    private final int capacityShift;
+
+    /** Per-thread duplicates, so that bulk copies do not race on position. */
+    private final ThreadLocal<ByteBuffer> writers;
+    private final ThreadLocal<ByteBuffer> readers;
+
+    /**
+     * Creates an empty queue holding at least the given number of bytes,
+     * rounded up to a power of two.
+     *
+     * @param capacity the minimum number of bytes, headers included
+     * @throws IllegalArgumentException if {@code capacity} is less than 16
+     *         or greater than 1 GB
+     */
+    public SomeOffHeapQueue(int capacity) {
+        if (capacity < 2 * HEADER || capacity > MAX_CAPACITY)
+            throw new IllegalArgumentException();
+        this.capacity = 1 << (32 - Integer.numberOfLeadingZeros(capacity - 1));
+        this.mask = this.capacity - 1;
+        this.capacityShift = Integer.numberOfTrailingZeros(this.capacity);
+        this.buffer = ByteBuffer.allocateDirect(this.capacity);
+        this.writers = ThreadLocal.withInitial(buffer::duplicate);
+        this.readers = ThreadLocal.withInitial(buffer::asReadOnlyBuffer);
+    }
+
+    /**
+     * Returns the capacity of this queue in bytes.
+     *
+     * @return the capacity in bytes
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the length of the longest message this queue accepts.
+     *
+     * @return the maximum message length in bytes
+     */
+    public int maxMessageLength() {
+        return (capacity >>> 1) - HEADER;
+    }
+
+    /**
+     * Appends a copy of the message.
+     *
+     * @param message the message
+     * @return {@code true} if the message was added, {@code false} if there
+     *         is not enough free space
+     * @throws IllegalArgumentException if the message is longer than
+     *         {@link #maxMessageLength()}
+     */
+    public boolean offer(byte[] message) {
+        return offer(message, 0, message.length);
+    }
+
+    /**
+     * Appends a copy of {@code length} bytes of {@code src} from
+     * {@code offset}.
+     *
+     * @return {@code true} if the message was added, {@code false} if there
+     *         is not enough free space
+     * @throws IndexOutOfBoundsException if offset and length do not fit src
+     * @throws IllegalArgumentException if the message is longer than
+     *         {@link #maxMessageLength()}
+     */
+    public boolean offer(byte[] src, int offset, int length) {
+        if ((offset | length) < 0 || length > src.length - offset)
+            throw new IndexOutOfBoundsException();
+        long position = claim(length);
+        if (position < 0)
+            return false;
+        ByteBuffer w = writers.get();
+        ((Buffer) w).clear();
+        ((Buffer) w).position((int) (position & mask) + HEADER);
+        w.put(src, offset, length);
+        commit(position, length);
+        return true;
+    }
+
+    /**
+     * Appends a copy of the remaining bytes of {@code src}; its position
+     * is advanced past them if the message was added.
+     *
+     * @return {@code true} if the message was added, {@code false} if there
+     *         is not enough free space
+     * @throws IllegalArgumentException if the message is longer than
+     *         {@link #maxMessageLength()}
+     */
+    public boolean offer(ByteBuffer src) {
+        int length = src.remaining();
+        long position = claim(length);
+        if (position < 0)
+            return false;
+        ByteBuffer w = writers.get();
+        ((Buffer) w).clear();
+        ((Buffer) w).position((int) (position & mask) + HEADER);
+        w.put(src);
+        commit(position, length);
+        return true;
+    }
+
+    /**
+     * Claims space for a message.
+     *
+     * @return the position of the record, or -1 if the queue is full
+     */
+    private long claim(int length) {
+        if (length > maxMessageLength())
+            throw new IllegalArgumentException("Message too long: " + length);
+        final int recordLength = align(HEADER + length);
+        for (;;) {
+            long t = tail;
+            int index = (int) (t & mask);
+            int toEnd = capacity - index;
+            int pad = recordLength > toEnd ? toEnd : 0;
+            long end = t + pad + recordLength;
+            if (end - released > capacity) {
+                if (reclaim() || t != tail)
+                    continue;
+                return -1;
+            }
+            if (casTail(t, end)) {
+                if (pad == 0)
+                    return t;
+                ByteBufferAccess.putLongRelease(buffer, index, header(lap(t), pad - HEADER, CONSUMED));
+                return t + pad;
+            }
+        }
+    }
+
+    /**
+     * Publishes the record at the given position.
+     */
+    private void commit(long position, int length) {
+        ByteBufferAccess.putLongRelease(buffer, (int) (position & mask),
+                header(lap(position), length, COMMITTED));
+    }
+
+    /**
+     * Removes the message at the head of this queue and passes a
+     * read-only view of it to the handler, without copying.  The view's
+     * position and limit delimit the message; it is only valid until the
+     * handler returns and must not be kept.  The handler must not poll
+     * this queue itself.
+     *
+     * @param handler receives the message
+     * @return {@code true} if a message was removed, {@code false} if the
+     *         queue was empty
+     */
+    public boolean poll(Consumer<? super ByteBuffer> handler) {
+        if (handler == null)
+            throw new NullPointerException();
+        for (;;) {
+            long h = head;
+            int index = (int) (h & mask);
+            long header = ByteBufferAccess.getLongVolatile(buffer, index);
+            int state = state(header);
+            if (state == NONE || lapOf(header) != lap(h)) {
+                if (h == head)
+                    return false;
+                continue;
+            }
+            long next = h + align(HEADER + length(header));
+            if (!casHead(h, next))
+                continue;
+            if (state == CONSUMED) {
+                // padding
+                reclaim();
+                continue;
+            }
+            ByteBuffer view = readers.get();
+            ((Buffer) view).clear();
+            ((Buffer) view).limit(index + HEADER + length(header));
+            ((Buffer) view).position(index + HEADER);
+            try {
+                handler.accept(view);
+            } finally {
+                ByteBufferAccess.putLongRelease(buffer, index, (header & ~STATE_MASK) | CONSUMED);
+                reclaim();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Removes the message at the head of this queue and returns a copy.
+     *
+     * @return the message, or null if the queue was empty
+     */
+    public byte[] poll() {
+        byte[][] copy = new byte[1][];
+        poll(view -> {
+            byte[] b = new byte[view.remaining()];
+            view.get(b);
+            copy[0] = b;
+        });
+        return copy[0];
+    }
+
+    /**
+     * Removes up to {@code maxMessages} messages, passing each to the
+     * handler as {@link #poll(Consumer)} does.
+     *
+     * @return the number of messages removed
+     */
+    public int drain(Consumer<? super ByteBuffer> handler, int maxMessages) {
+        int n = 0;
+        while (n < maxMessages && poll(handler))
+            n++;
+        return n;
+    }
+
+    /**
+     * Returns {@code true} if no message is queued or being written.
+     *
+     * @return {@code true} if this queue is empty
+     */
+    public boolean isEmpty() {
+        return head >= tail;
+    }
+
+    /**
+     * Returns the number of bytes that are not free for producers: queued
+     * records, records being read, and consumed records not reclaimed yet.
+     *
+     * @return the number of bytes in use
+     */
+    public long usedBytes() {
+        return tail - released;
+    }
+
+    /**
+     * Reclaims consumed records at released, in order.
+     *
+     * @return {@code true} if some space was reclaimed
+     */
+    private boolean reclaim() {
+        boolean reclaimed = false;
+        for (;;) {
+            long r = released;
+            if (r >= head)
+                return reclaimed;
+            int index = (int) (r & mask);
+            long header = ByteBufferAccess.getLongVolatile(buffer, index);
+            if (state(header) != CONSUMED || lapOf(header) != lap(r))
+                return reclaimed;
+            if (!ByteBufferAccess.casLong(buffer, index, header, 0L))
+                continue;
+            int recordLength = align(HEADER + length(header));
+            for (int i = index + HEADER, end = index + recordLength; i < end; i += 8)
+                buffer.putLong(i, 0L);
+            lazySetReleased(r + recordLength);
+            reclaimed = true;
+        }
+    }
+
+    // header fields
+
+    private static final long STATE_MASK = 3L;
+
+    private int lap(long position) {
+        return (int) (position >>> capacityShift);
+    }
+
+    private static long header(int lap, int length, int state) {
+        return ((long) lap << 32) | ((long) length << 2) | state;
+    }
+
+    private static int lapOf(long header) {
+        return (int) (header >>> 32);
+    }
+
+    private static int state(long header) {
+        return (int) (header & STATE_MASK);
+    }
+
+    private static int length(long header) {
+        return ((int) header) >>> 2;
+    }
+
+    private static int align(int length) {
+        return (length + 7) & ~7;
+    }
+}
+
+/*
+ * head and tail are padded like SomeQueue's, see the note above
+ * SomeQueuePad0.  released is mostly written by consumers and sits with
+ * head.
+ */
+
+abstract class SomeOffHeapQueuePad0 {
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
+
+abstract class SomeOffHeapQueueHead extends SomeOffHeapQueuePad0 {
+    private static final AtomicLongFieldUpdater<SomeOffHeapQueueHead> HEAD =
+            AtomicLongFieldUpdater.newUpdater(SomeOffHeapQueueHead.class, "head");
+    private static final AtomicLongFieldUpdater<SomeOffHeapQueueHead> RELEASED =
+            AtomicLongFieldUpdater.newUpdater(SomeOffHeapQueueHead.class, "released");
+
+    /** Position of the next record consumers claim */
+    volatile long head;
+
+    /** Position up to which space has been zeroed and given back to producers */
+    volatile long released;
+
+    final boolean casHead(long cmp, long val) {
+        return HEAD.compareAndSet(this, cmp, val);
+    }
+
+    final void lazySetReleased(long val) {
+        RELEASED.lazySet(this, val);
+    }
+}
+
+abstract class SomeOffHeapQueuePad1 extends SomeOffHeapQueueHead {
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
+
+abstract class SomeOffHeapQueueTail extends SomeOffHeapQueuePad1 {
+    private static final AtomicLongFieldUpdater<SomeOffHeapQueueTail> TAIL =
+            AtomicLongFieldUpdater.newUpdater(SomeOffHeapQueueTail.class, "tail");
+
+    /** Position of the next record producers claim */
+    volatile long tail;
+
+    final boolean casTail(long cmp, long val) {
+        return TAIL.compareAndSet(this, cmp, val);
+    }
+}
+
+abstract class SomeOffHeapQueuePad2 extends SomeOffHeapQueueTail {
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
@@ -35,18 +35,23 @@
 
 package test;
 
-import sun.misc.Unsafe;
-
-import java.lang.reflect.Field;
 import java.util.AbstractQueue;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Queue;
 import java.util.Spliterator;
 import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * An unbounded thread-safe {@linkplain Queue queue} based on linked nodes.
@@ -80,6 +85,17 @@ import java.util.function.Consumer;
  * asynchronous nature of these queues, determining the current number
  * of elements requires a traversal of the elements, and so may report
  * inaccurate results if this collection is modified during traversal.
+ * Queues created in <em>counting mode</em> (see {@link #SomeQueue(boolean)})
+ * additionally maintain a striped element count that can be read in
+ * constant time through {@link #approximateSize}.
+ * Queues created in <em>indexed mode</em> (see
+ * {@link #SomeQueue(boolean, IndexMode)}) keep a map from element to node,
+ * which makes {@code contains} and {@code remove(Object)} constant-time
+ * operations, but reject elements that are already present.
+ * Queues created in <em>timestamped mode</em> (see
+ * {@link #SomeQueue(boolean, IndexMode, boolean)}) remember when each
+ * element was offered and can shed stale elements with
+ * {@link #pollFresh} or {@link #poll(CoDel)}.
  * Additionally, the bulk operations {@code addAll},
  * {@code removeAll}, {@code retainAll}, {@code containsAll},
  * {@code equals}, and {@code toArray} are <em>not</em> guaranteed
@@ -105,7 +121,7 @@ import java.util.function.Consumer;
  * @author Doug Lea
  * @param <E> the type of elements held in this collection
  */
-public class SomeQueue<E> extends AbstractQueue<E>
+public class SomeQueue<E> extends SomeQueuePad2<E>
         implements Queue<E>, java.io.Serializable {
     private static final long serialVersionUID = 196745693267521676L;
 
@@ -168,19 +184,78 @@ public class SomeQueue<E> extends AbstractQueue<E>
      * this is merely an optimization.
      *
      * When constructing a Node (before enqueuing it) we avoid paying
-     * for a volatile write to item by using Unsafe.putObject instead
-     * of a normal write.  This allows the cost of enqueue to be
+     * for a volatile write to item by using a plain write instead of a
+     * volatile one.  This allows the cost of enqueue to be
      * "one-and-a-half" CASes.
      *
+     * All field accesses other than plain volatile reads go through
+     * SomeQueueAccess.  Its base version uses sun.misc.Unsafe; the build
+     * puts a VarHandle version under META-INF/versions/9 of the
+     * multi-release jar, so newer JDKs never touch Unsafe.
+     *
+     * head and tail are declared in a chain of padded superclasses
+     * (see the end of this file) so that consumers CASing head and
+     * producers CASing tail do not false-share a cache line.
+     *
      * Both head and tail may or may not point to a Node with a
      * non-null item.  If the queue is empty, all items must of course
      * be null.  Upon creation, both head and tail refer to a dummy
      * Node with null item.  Both head and tail are only updated using
      * CAS, so they never regress, although again this is merely an
      * optimization.
+     *
+     * In counting mode a LongAdder is incremented after the successful
+     * casNext that links a new node and decremented after each
+     * successful casItem that nulls an item.  The two updates are not
+     * atomic with the queue operations, so the sum may briefly lag or
+     * even be negative; approximateSize() clamps it.  Every way of
+     * removing an item therefore has to go through casItem, including
+     * Itr.remove, so that an item is never counted out twice.
+     *
+     * Relaxed tail mode (RELAXED_TAIL) weakens the tail hop in offer
+     * to a weak CAS with release semantics.  Why this is still
+     * linearizable:
+     * - offer(e) linearizes at the successful p.casNext(null, newNode).
+     *   newNode.item was written plainly before, and casNext is at
+     *   least a release, so every thread that reaches newNode through a
+     *   volatile read of some next field also sees e.
+     * - The tail hop comes after that casNext in program order.  A
+     *   release CAS of tail therefore publishes newNode together with
+     *   everything the casNext published; a thread that reads newNode
+     *   from tail (a volatile, hence acquiring, read) sees the same
+     *   state as one that reached it through p.next.
+     * - tail is no linearization point of any operation; it only says
+     *   where offer starts to look for the last node.  The invariant
+     *   "the last node is reachable from tail" holds because tail is
+     *   only ever CASed from a node t to a node linked after t.  A
+     *   spurious failure of the weak CAS merely leaves tail lagging,
+     *   which the non-invariants of tail already permit.
+     * Nothing else changes: casNext, casItem and casHead remain full
+     * CASes, and addAll, which tries harder to move tail, always uses
+     * the strong CAS.  On x86 both CASes compile to the same locked
+     * instruction; the fence is saved on weakly ordered hardware such
+     * as ARM and POWER, and only with the JDK 9+ SomeQueueAccess, as
+     * Unsafe has no weaker CAS.  SomeQueueStress races offer against
+     * poll and offer to check the publication and ordering guarantees.
+     */
+
+    /**
+     * Whether offer moves tail with a weak release CAS, see "Relaxed
+     * tail mode" above.  Set with the {@code test.SomeQueue.relaxedTail}
+     * system property; static final so the JIT folds the check.
+     */
+    static final boolean RELAXED_TAIL =
+            Boolean.getBoolean("test.SomeQueue.relaxedTail");
+
+    /**
+     * Whether queues keep {@link SomeQueueMetrics}.  Set with the
+     * {@code test.SomeQueue.metrics} system property; static final so
+     * that, when off, the JIT removes the counting code altogether.
      */
+    static final boolean METRICS =
+            Boolean.getBoolean("test.SomeQueue.metrics");
 
-    private static class Node<E> {
+    static class Node<E> {
         volatile E item;
         volatile Node<E> next;
 
@@ -189,75 +264,185 @@ public class SomeQueue<E> extends AbstractQueue<E>
          * only be seen after publication via casNext.
          */
         Node(E item) {
-            UNSAFE.putObject(this, itemOffset, item);
+            SomeQueueAccess.putItemRelaxed(this, item);
+        }
+
+        /**
+         * Prepares a recycled node for reuse, see RecyclingSomeQueue.
+         * Relaxed writes suffice for the same reason as above.
+         */
+        void reinit(E item) {
+            SomeQueueAccess.putItemRelaxed(this, item);
+            lazySetNext(null);
         }
 
         boolean casItem(E cmp, E val) {
-            return UNSAFE.compareAndSwapObject(this, itemOffset, cmp, val);
+            return SomeQueueAccess.casItem(this, cmp, val);
         }
 
         void lazySetNext(Node<E> val) {
-            UNSAFE.putOrderedObject(this, nextOffset, val);
+            SomeQueueAccess.lazySetNext(this, val);
         }
 
         boolean casNext(Node<E> cmp, Node<E> val) {
-            return UNSAFE.compareAndSwapObject(this, nextOffset, cmp, val);
-        }
-
-        // Unsafe mechanics
-
-        private static final sun.misc.Unsafe UNSAFE;
-        private static final long itemOffset;
-        private static final long nextOffset;
-
-        static {
-            try {
-                final Field field = Unsafe.class.getDeclaredField("theUnsafe");
-                field.setAccessible(true);
-                UNSAFE = (Unsafe) field.get(null);
-                Class<?> k = Node.class;
-                itemOffset = UNSAFE.objectFieldOffset
-                        (k.getDeclaredField("item"));
-                nextOffset = UNSAFE.objectFieldOffset
-                        (k.getDeclaredField("next"));
-            } catch (Exception e) {
-                throw new Error(e);
-            }
+            return SomeQueueAccess.casNext(this, cmp, val);
         }
     }
 
     /**
-     * A node from which the first live (non-deleted) node (if any)
-     * can be reached in O(1) time.
-     * Invariants:
-     * - all live nodes are reachable from head via succ()
-     * - head != null
-     * - (tmp = head).next != tmp || tmp != head
-     * Non-invariants:
-     * - head.item may or may not be null.
-     * - it is permitted for tail to lag behind head, that is, for tail
-     *   to not be reachable from head!
+     * A node stamped with the {@link System#nanoTime} of its offer.
      */
-    private transient volatile Node<E> head;
+    static final class TimedNode<E> extends Node<E> {
+        /** Written plainly before publication, like item */
+        long enqueueTime;
+
+        TimedNode(E item, long enqueueTime) {
+            super(item);
+            this.enqueueTime = enqueueTime;
+        }
+
+        /**
+         * Restamps a recycled node with the time of its new offer.
+         */
+        @Override
+        void reinit(E item) {
+            enqueueTime = System.nanoTime();
+            super.reinit(item);
+        }
+    }
 
     /**
-     * A node from which the last node on list (that is, the unique
-     * node with node.next == null) can be reached in O(1) time.
-     * Invariants:
-     * - the last node is always reachable from tail via succ()
-     * - tail != null
-     * Non-invariants:
-     * - tail.item may or may not be null.
-     * - it is permitted for tail to lag behind head, that is, for tail
-     *   to not be reachable from head!
-     * - tail.next may or may not be self-pointing to tail.
+     * Whether this queue maintains {@link #count}.
+     *
+     * @serial
+     */
+    private final boolean counting;
+
+    /**
+     * Number of elements in counting mode, null otherwise.
+     */
+    private transient LongAdder count;
+
+    /**
+     * How an indexed queue matches elements, see
+     * {@link SomeQueue#SomeQueue(boolean, IndexMode)}.
+     */
+    public enum IndexMode {
+        /** No index */
+        NONE,
+        /** Elements are matched with {@code equals} */
+        EQUALITY,
+        /**
+         * Elements are matched with {@code ==}: {@code contains},
+         * {@code remove(Object)} and the duplicate check of {@code offer}
+         * only find the very instance that was offered, not an equal one
+         */
+        IDENTITY
+    }
+
+    /**
+     * How this queue indexes its elements.
+     *
+     * @serial
+     */
+    private final IndexMode indexMode;
+
+    /**
+     * Key (the element, or an IdentityKey) to the node holding it, in
+     * indexed mode; null otherwise.
      */
-    private transient volatile Node<E> tail;
+    private transient ConcurrentHashMap<Object, Node<E>> index;
+
+    /**
+     * Whether offer stamps nodes with their enqueue time.
+     *
+     * @serial
+     */
+    private final boolean timestamped;
+
+    /**
+     * Number of elements dropped as stale in timestamped mode, null
+     * otherwise.
+     */
+    private transient LongAdder dropped;
+
+    /**
+     * Contention counters in metrics mode, null otherwise.  Only read
+     * behind a check of METRICS.
+     */
+    private transient SomeQueueMetrics metrics;
 
     /**
      * Creates a {@code SomeQueue} that is initially empty.
      */
     public SomeQueue() {
+        this(false);
+    }
+
+    /**
+     * Creates a {@code SomeQueue} that is initially empty, optionally in
+     * counting mode.  A counting queue keeps a striped count of its
+     * elements so that {@link #approximateSize} is a constant-time
+     * operation, at the price of one extra uncontended add on every
+     * successful insertion and removal.
+     *
+     * @param counting whether to maintain an element count
+     */
+    public SomeQueue(boolean counting) {
+        this(counting, IndexMode.NONE);
+    }
+
+    /**
+     * Creates a {@code SomeQueue} that is initially empty, optionally in
+     * counting mode and optionally in indexed mode.
+     *
+     * <p>An indexed queue keeps a concurrent map from each element to its
+     * node, so that {@link #contains} and {@link #remove(Object)} look the
+     * element up instead of traversing the queue, and {@code remove}
+     * clears the node's item with a single CAS.  The cleared node is
+     * unlinked later, when {@code poll} passes it.  An element that is
+     * already present, as decided by the index mode, is not inserted
+     * again: {@code offer} returns {@code false}.  Each insertion and
+     * removal pays for a map update.
+     *
+     * @param counting whether to maintain an element count
+     * @param indexMode how elements are indexed, {@link IndexMode#NONE}
+     *        for no index
+     * @throws NullPointerException if indexMode is null
+     */
+    public SomeQueue(boolean counting, IndexMode indexMode) {
+        this(counting, indexMode, false);
+    }
+
+    /**
+     * Creates a {@code SomeQueue} that is initially empty, optionally in
+     * counting, indexed and timestamped mode.
+     *
+     * <p>A timestamped queue stamps each node with the
+     * {@link System#nanoTime} of its offer, so that consumers can drop
+     * elements that waited too long instead of processing them late: see
+     * {@link #pollFresh} and {@link #poll(CoDel)}.  Offers pay for a
+     * {@code nanoTime} call and nodes grow by a {@code long}.
+     *
+     * @param counting whether to maintain an element count
+     * @param indexMode how elements are indexed, {@link IndexMode#NONE}
+     *        for no index
+     * @param timestamped whether to stamp elements with their enqueue time
+     * @throws NullPointerException if indexMode is null
+     */
+    public SomeQueue(boolean counting, IndexMode indexMode, boolean timestamped) {
+        checkNotNull(indexMode);
+        this.counting = counting;
+        this.indexMode = indexMode;
+        this.timestamped = timestamped;
+        if (counting)
+            count = new LongAdder();
+        if (indexMode != IndexMode.NONE)
+            index = new ConcurrentHashMap<>();
+        if (timestamped)
+            dropped = new LongAdder();
+        if (METRICS)
+            metrics = new SomeQueueMetrics();
         head = tail = new Node<E>(null);
     }
 
@@ -271,6 +456,9 @@ public class SomeQueue<E> extends AbstractQueue<E>
      *         of its elements are null
      */
     public SomeQueue(Collection<? extends E> c) {
+        counting = false;
+        indexMode = IndexMode.NONE;
+        timestamped = false;
         Node<E> h = null, t = null;
         for (E e : c) {
             checkNotNull(e);
@@ -286,6 +474,8 @@ public class SomeQueue<E> extends AbstractQueue<E>
             h = t = new Node<E>(null);
         head = h;
         tail = t;
+        if (METRICS)
+            metrics = new SomeQueueMetrics();
     }
 
     // Have to override just to update the javadoc
@@ -293,9 +483,11 @@ public class SomeQueue<E> extends AbstractQueue<E>
     /**
      * Inserts the specified element at the tail of this queue.
      * As the queue is unbounded, this method will never throw
-     * {@link IllegalStateException} or return {@code false}.
+     * {@link IllegalStateException}.  It returns {@code false} only if
+     * the queue is indexed and already contains the element, which
+     * {@link Collection#add} allows.
      *
-     * @return {@code true} (as specified by {@link Collection#add})
+     * @return {@code true} if this queue changed as a result of the call
      * @throws NullPointerException if the specified element is null
      */
     public boolean add(E e) {
@@ -307,8 +499,161 @@ public class SomeQueue<E> extends AbstractQueue<E>
      * as sentinel for succ(), below.
      */
     final void updateHead(Node<E> h, Node<E> p) {
-        if (h != p && casHead(h, p))
+        if (h != p && casHead(h, p)) {
+            retire(h, p);
             h.lazySetNext(h);
+        }
+    }
+
+    /**
+     * Creates the node that offer links for e.  Overridden by
+     * RecyclingSomeQueue to take nodes from its pool.
+     */
+    Node<E> newNode(E e) {
+        return stampedNode(e);
+    }
+
+    /**
+     * Creates a node stamped with the current time if this queue is
+     * timestamped or in metrics mode, a plain node otherwise.
+     */
+    final Node<E> stampedNode(E e) {
+        return (METRICS || timestamped) ? new TimedNode<E>(e, System.nanoTime()) : new Node<E>(e);
+    }
+
+    /**
+     * Called after updateHead has moved head from h to p, before h is
+     * linked to itself, so h.next still leads to p.  Overridden by
+     * RecyclingSomeQueue to recycle the nodes from h up to p.
+     */
+    void retire(Node<E> h, Node<E> p) {
+    }
+
+    /**
+     * Whether remove(Object) may unlink deleted interior nodes.
+     * RecyclingSomeQueue relies on the chain from head onwards changing
+     * only at its ends.
+     */
+    boolean unlinksInterior() {
+        return true;
+    }
+
+    /**
+     * Whether nodes are reused for new elements once taken.  Overridden by
+     * RecyclingSomeQueue; a node returned by offerNode can then no longer
+     * tell whether its element has been taken.
+     */
+    boolean recyclesNodes() {
+        return false;
+    }
+
+    /**
+     * Removes item from p, the node offerNode returned for it, unless it
+     * has been taken already.  The node is left for poll to unlink.
+     *
+     * @return true if item was removed
+     */
+    final boolean removeNode(Node<E> p, E item) {
+        if (!p.casItem(item, null))
+            return false;
+        if (count != null)
+            count.decrement();
+        if (index != null)
+            unindex(item, p);
+        return true;
+    }
+
+    final boolean isCounting() {
+        return counting;
+    }
+
+    /**
+     * Returns the number of elements that {@link #pollFresh} and
+     * {@link #poll(CoDel)} have discarded as stale.  Always 0 unless this
+     * queue is timestamped.
+     *
+     * @return the number of discarded elements
+     */
+    public long droppedCount() {
+        return timestamped ? dropped.sum() : 0L;
+    }
+
+    /**
+     * Returns the contention counters of this queue, or null unless the
+     * JVM runs with {@code -Dtest.SomeQueue.metrics=true}.
+     *
+     * @return the metrics of this queue, or null
+     */
+    public SomeQueueMetrics metrics() {
+        return METRICS ? metrics : null;
+    }
+
+    /**
+     * Records the offer-to-removal latency of p, in metrics mode.
+     */
+    private void recordLatency(Node<E> p) {
+        if (p instanceof TimedNode)
+            metrics.recordLatency(System.nanoTime() - ((TimedNode<E>) p).enqueueTime);
+    }
+
+    /**
+     * Wraps elements of an IDENTITY index, whose keys must not use the
+     * element's equals and hashCode.
+     */
+    static final class IdentityKey {
+        final Object element;
+
+        IdentityKey(Object element) {
+            this.element = element;
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(element);
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof IdentityKey && ((IdentityKey) o).element == element;
+        }
+    }
+
+    private Object indexKey(Object o) {
+        return (indexMode == IndexMode.IDENTITY) ? new IdentityKey(o) : o;
+    }
+
+    /**
+     * Whether p currently holds o, as the index mode matches elements.
+     */
+    private boolean holds(Node<E> p, Object o) {
+        E item = p.item;
+        return item != null && (item == o || (indexMode == IndexMode.EQUALITY && o.equals(item)));
+    }
+
+    /**
+     * Makes node the indexed node of e, unless e is present already.
+     * Entries of nodes whose item has been taken are stale and replaced.
+     *
+     * @return false if e is present
+     */
+    private boolean index(E e, Node<E> node) {
+        final ConcurrentHashMap<Object, Node<E>> index = this.index;
+        Object key = indexKey(e);
+        for (;;) {
+            Node<E> old = index.putIfAbsent(key, node);
+            if (old == null)
+                return true;
+            if (holds(old, e))
+                return false;
+            if (index.replace(key, old, node))
+                return true;
+        }
+    }
+
+    /**
+     * Drops the entry of item if it still refers to p, once p's item
+     * has been taken.
+     */
+    private void unindex(E item, Node<E> p) {
+        index.remove(indexKey(item), p);
     }
 
     /**
@@ -323,15 +668,32 @@ public class SomeQueue<E> extends AbstractQueue<E>
 
     /**
      * Inserts the specified element at the tail of this queue.
-     * As the queue is unbounded, this method will never return {@code false}.
+     * As the queue is unbounded, this method will never return {@code false},
+     * unless the queue is indexed and already contains the element.
      *
-     * @return {@code true} (as specified by {@link Queue#offer})
+     * @return {@code true} if the element was added to this queue, else
+     *         {@code false}
      * @throws NullPointerException if the specified element is null
      */
     public boolean offer(E e) {
+        return offerNode(e) != null;
+    }
+
+    /**
+     * Offers e and returns the node it was linked in, or null if the
+     * queue is indexed and already contains e.  The node's item becomes
+     * null once e has been taken, which is what SomeBlockingQueue.transfer
+     * waits for; that only holds if the queue does not recycle nodes.
+     */
+    final Node<E> offerNode(E e) {
         checkNotNull(e);
-        final Node<E> newNode = new Node<E>(e);
+        final Node<E> newNode = newNode(e);
+        // The node is indexed before it is linked.  A remove that finds
+        // it meanwhile takes effect as if right after this offer.
+        if (index != null && !index(e, newNode))
+            return null;
 
+        int hops = 0;
         for (Node<E> t = tail, p = t;;) {
             Node<E> q = p.next;
             if (q == null) {
@@ -340,27 +702,46 @@ public class SomeQueue<E> extends AbstractQueue<E>
                     // Successful CAS is the linearization point
                     // for e to become an element of this queue,
                     // and for newNode to become "live".
-                    if (p != t) // hop two nodes at a time
-                        casTail(t, newNode);  // Failure is OK.
-                    return true;
+                    if (p != t) { // hop two nodes at a time
+                        // Failure is OK.
+                        boolean moved = RELAXED_TAIL ? weakCasTailRelease(t, newNode) : casTail(t, newNode);
+                        if (METRICS && !moved)
+                            metrics.tailCasFailures.increment();
+                    }
+                    if (count != null)
+                        count.increment();
+                    if (METRICS) {
+                        metrics.offers.increment();
+                        metrics.tailHops.add(hops);
+                    }
+                    return newNode;
                 }
                 // Lost CAS race to another thread; re-read next
+                if (METRICS)
+                    metrics.offerCasFailures.increment();
             }
-            else if (p == q)
+            else if (p == q) {
                 // We have fallen off list.  If tail is unchanged, it
                 // will also be off-list, in which case we need to
                 // jump to head, from which all live nodes are always
                 // reachable.  Else the new tail is a better bet.
                 p = (t != (t = tail)) ? t : head;
-            else
+                if (METRICS)
+                    metrics.offerRestarts.increment();
+            }
+            else {
                 // Check for tail updates after two hops.
                 p = (p != t && t != (t = tail)) ? t : q;
+                if (METRICS)
+                    hops++;
+            }
         }
     }
 
     public E poll() {
         restartFromHead:
         for (;;) {
+            int hops = 0;
             for (Node<E> h = head, p = h, q;;) {
                 E item = p.item;
 
@@ -369,20 +750,145 @@ public class SomeQueue<E> extends AbstractQueue<E>
                     // for item to be removed from this queue.
                     if (p != h) // hop two nodes at a time
                         updateHead(h, ((q = p.next) != null) ? q : p);
+                    if (count != null)
+                        count.decrement();
+                    if (index != null)
+                        unindex(item, p);
+                    if (METRICS) {
+                        metrics.polls.increment();
+                        metrics.headHops.add(hops);
+                        recordLatency(p);
+                    }
                     return item;
                 }
-                else if ((q = p.next) == null) {
+                else if (METRICS && item != null)
+                    metrics.pollCasFailures.increment();
+                if ((q = p.next) == null) {
                     updateHead(h, p);
+                    if (METRICS)
+                        metrics.emptyPolls.increment();
                     return null;
                 }
-                else if (p == q)
+                else if (p == q) {
+                    if (METRICS)
+                        metrics.pollRestarts.increment();
                     continue restartFromHead;
+                }
+                else {
+                    p = q;
+                    if (METRICS)
+                        hops++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, first discarding the
+     * elements that have been queued for longer than the given age.
+     * Returns {@code null} if no element is fresh enough.
+     *
+     * <p>A consumer that falls behind would otherwise spend its time on
+     * elements whose deadline has passed, falling further behind; dropping
+     * them lets it catch up with the elements still worth processing.
+     * Discarded elements are counted by {@link #droppedCount}.
+     *
+     * @param maxAge the maximum time an element may have been queued
+     * @param unit the time unit of maxAge
+     * @return the first element not older than maxAge, or {@code null}
+     * @throws IllegalStateException if this queue is not timestamped
+     */
+    public E pollFresh(long maxAge, TimeUnit unit) {
+        checkTimestamped();
+        return pollShedding(unit.toNanos(maxAge), null, null);
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, discarding elements
+     * as the given {@link CoDel} decides from their sojourn times.
+     * Returns {@code null} if this queue is empty, or becomes empty
+     * through the discarding.
+     *
+     * <p>Unlike {@link #pollFresh}, this keeps working when all elements
+     * are moderately late: CoDel only drops while the delay stays above
+     * its target, and just enough to bring it back down.  Discarded
+     * elements are counted by {@link #droppedCount}.
+     *
+     * @param codel the control state of the calling consumer
+     * @return the first element CoDel lets through, or {@code null}
+     * @throws NullPointerException if codel is null
+     * @throws IllegalStateException if this queue is not timestamped
+     */
+    public E poll(CoDel codel) {
+        checkNotNull(codel);
+        checkTimestamped();
+        return pollShedding(0L, codel, null);
+    }
+
+    /**
+     * Polls like {@link #poll}, passing the sojourn time of the element
+     * taken to sojourns.  Used by SomeLaneQueue for its lane statistics;
+     * the queue must be timestamped.
+     */
+    final E pollTimed(LongConsumer sojourns) {
+        return pollShedding(Long.MAX_VALUE, null, sojourns);
+    }
+
+    /**
+     * Claims elements from the head in drain style, dropping those that
+     * are older than maxAgeNanos, or that codel rejects if not null, and
+     * returns the first one that is kept, after passing its sojourn time
+     * to sojourns if not null.
+     */
+    private E pollShedding(long maxAgeNanos, CoDel codel, LongConsumer sojourns) {
+        restartFromHead:
+        for (;;) {
+            for (Node<E> h = head, p = h, q;;) {
+                E item = p.item;
+
+                if (item != null && p.casItem(item, null)) {
+                    if (count != null)
+                        count.decrement();
+                    if (index != null)
+                        unindex(item, p);
+                    long now = System.nanoTime();
+                    long sojourn = (p instanceof TimedNode) ? now - ((TimedNode<E>) p).enqueueTime : 0L;
+                    if (codel != null ? !codel.shouldDrop(sojourn, now) : sojourn <= maxAgeNanos) {
+                        updateHead(h, ((q = p.next) != null) ? q : p);
+                        if (sojourns != null)
+                            sojourns.accept(sojourn);
+                        if (METRICS) {
+                            metrics.polls.increment();
+                            recordLatency(p);
+                        }
+                        return item;
+                    }
+                    dropped.increment();
+                }
+                if ((q = p.next) == null) {
+                    updateHead(h, p);
+                    if (METRICS)
+                        metrics.emptyPolls.increment();
+                    return null;
+                }
+                else if (p == q) {
+                    // Another consumer moved head past p; the items
+                    // already dropped stay dropped.
+                    if (METRICS)
+                        metrics.pollRestarts.increment();
+                    continue restartFromHead;
+                }
                 else
                     p = q;
             }
         }
     }
 
+    private void checkTimestamped() {
+        if (!timestamped)
+            throw new IllegalStateException("queue is not timestamped");
+    }
+
     public E peek() {
         restartFromHead:
         for (;;) {
@@ -392,8 +898,11 @@ public class SomeQueue<E> extends AbstractQueue<E>
                     updateHead(h, p);
                     return item;
                 }
-                else if (p == q)
+                else if (p == q) {
+                    if (METRICS)
+                        metrics.peekRestarts.increment();
                     continue restartFromHead;
+                }
                 else
                     p = q;
             }
@@ -417,8 +926,11 @@ public class SomeQueue<E> extends AbstractQueue<E>
                     updateHead(h, p);
                     return hasItem ? p : null;
                 }
-                else if (p == q)
+                else if (p == q) {
+                    if (METRICS)
+                        metrics.peekRestarts.increment();
                     continue restartFromHead;
+                }
                 else
                     p = q;
             }
@@ -460,16 +972,40 @@ public class SomeQueue<E> extends AbstractQueue<E>
         return count;
     }
 
+    /**
+     * Returns an estimate of the number of elements in this queue.
+     *
+     * <p>In counting mode this is a constant-time operation that does not
+     * traverse the queue; the result may be inaccurate if elements are
+     * added or removed concurrently.  Otherwise this method is equivalent
+     * to {@link #size}.
+     *
+     * @return an estimate of the number of elements in this queue
+     */
+    public long approximateSize() {
+        LongAdder c = count;
+        if (c == null)
+            return size();
+        long n = c.sum();
+        return (n < 0) ? 0 : n;
+    }
+
     /**
      * Returns {@code true} if this queue contains the specified element.
      * More formally, returns {@code true} if and only if this queue contains
-     * at least one element {@code e} such that {@code o.equals(e)}.
+     * at least one element {@code e} such that {@code o.equals(e)}, or,
+     * if the queue is indexed with {@link IndexMode#IDENTITY}, such that
+     * {@code o == e}.
      *
      * @param o object to be checked for containment in this queue
      * @return {@code true} if this queue contains the specified element
      */
     public boolean contains(Object o) {
         if (o == null) return false;
+        if (index != null) {
+            Node<E> p = index.get(indexKey(o));
+            return p != null && holds(p, o);
+        }
         for (Node<E> p = first(); p != null; p = succ(p)) {
             E item = p.item;
             if (item != null && o.equals(item))
@@ -482,7 +1018,8 @@ public class SomeQueue<E> extends AbstractQueue<E>
      * Removes a single instance of the specified element from this queue,
      * if it is present.  More formally, removes an element {@code e} such
      * that {@code o.equals(e)}, if this queue contains one or more such
-     * elements.
+     * elements.  If the queue is indexed with {@link IndexMode#IDENTITY},
+     * only an element {@code e} such that {@code o == e} is removed.
      * Returns {@code true} if this queue contained the specified element
      * (or equivalently, if this queue changed as a result of the call).
      *
@@ -490,6 +1027,8 @@ public class SomeQueue<E> extends AbstractQueue<E>
      * @return {@code true} if this queue changed as a result of the call
      */
     public boolean remove(Object o) {
+        if (o != null && index != null)
+            return removeIndexed(o);
         if (o != null) {
             Node<E> next, pred = null;
             for (Node<E> p = first(); p != null; pred = p, p = next) {
@@ -504,21 +1043,45 @@ public class SomeQueue<E> extends AbstractQueue<E>
                 }
 
                 next = succ(p);
-                if (pred != null && next != null) // unlink
+                if (pred != null && next != null && unlinksInterior()) // unlink
                     pred.casNext(p, next);
-                if (removed)
+                if (removed) {
+                    if (count != null)
+                        count.decrement();
                     return true;
+                }
             }
         }
         return false;
     }
 
+    /**
+     * remove(Object) in indexed mode: claims the indexed node's item and
+     * leaves the node for poll to skip and unlink.
+     */
+    private boolean removeIndexed(Object o) {
+        Object key = indexKey(o);
+        Node<E> p = index.get(key);
+        if (p == null)
+            return false;
+        E item = p.item;
+        boolean removed = item != null && holds(p, o) && p.casItem(item, null);
+        if (removed || p.item == null)
+            index.remove(key, p);
+        if (removed && count != null)
+            count.decrement();
+        return removed;
+    }
+
     /**
      * Appends all of the elements in the specified collection to the end of
      * this queue, in the order that they are returned by the specified
      * collection's iterator.  Attempts to {@code addAll} of a queue to
      * itself result in {@code IllegalArgumentException}.
      *
+     * <p>In indexed mode the elements are offered one at a time, skipping
+     * those already present, and are not guaranteed to be contiguous.
+     *
      * @param c the elements to be inserted into this queue
      * @return {@code true} if this queue changed as a result of the call
      * @throws NullPointerException if the specified collection or any
@@ -529,12 +1092,21 @@ public class SomeQueue<E> extends AbstractQueue<E>
         if (c == this)
             // As historically specified in AbstractQueue#addAll
             throw new IllegalArgumentException();
+        if (index != null) {
+            boolean modified = false;
+            for (E e : c)
+                if (offer(e))
+                    modified = true;
+            return modified;
+        }
 
         // Copy c into a private chain of Nodes
         Node<E> beginningOfTheEnd = null, last = null;
+        long n = 0;
         for (E e : c) {
             checkNotNull(e);
-            Node<E> newNode = new Node<E>(e);
+            ++n;
+            Node<E> newNode = stampedNode(e);
             if (beginningOfTheEnd == null)
                 beginningOfTheEnd = last = newNode;
             else {
@@ -560,6 +1132,8 @@ public class SomeQueue<E> extends AbstractQueue<E>
                         if (last.next == null)
                             casTail(t, last);
                     }
+                    if (count != null)
+                        count.add(n);
                     return true;
                 }
                 // Lost CAS race to another thread; re-read next
@@ -576,6 +1150,109 @@ public class SomeQueue<E> extends AbstractQueue<E>
         }
     }
 
+    /**
+     * Inserts all elements of the specified list at the tail of this queue,
+     * in list order.  The elements are linked into a private chain first
+     * and the chain is then appended with a single CAS, so concurrent
+     * producers contend on the tail once per list rather than once per
+     * element, and the elements appear in the queue contiguously.
+     *
+     * @param list the elements to be inserted into this queue
+     * @return {@code true} if this queue changed as a result of the call
+     * @throws NullPointerException if the specified list or any of its
+     *         elements are null
+     * @throws IllegalArgumentException if the list is this queue
+     */
+    public boolean offerAll(List<? extends E> list) {
+        return addAll(list);
+    }
+
+    /**
+     * Removes at most the given number of elements from the head of this
+     * queue and passes them, in order, to the given action.
+     *
+     * <p>Unlike calling {@link #poll} in a loop, the traversal does not
+     * restart from {@code head} for every element, and {@code head} is
+     * advanced once for the whole batch.  Each element is still claimed
+     * with its own CAS on the node's item, which is what linearizes its
+     * removal against concurrent consumers.
+     *
+     * <p>If the action throws an exception, the element being passed and
+     * all elements already passed have been removed from this queue.
+     *
+     * @param action the action to be performed for each removed element
+     * @param maxElements the maximum number of elements to remove
+     * @return the number of elements removed
+     * @throws NullPointerException if the specified action is null
+     */
+    public int drain(Consumer<? super E> action, int maxElements) {
+        if (action == null)
+            throw new NullPointerException();
+        if (maxElements <= 0)
+            return 0;
+        int n = 0;
+        restartFromHead:
+        for (;;) {
+            for (Node<E> h = head, p = h, q;;) {
+                E item = p.item;
+
+                if (item != null && p.casItem(item, null)) {
+                    if (count != null)
+                        count.decrement();
+                    if (index != null)
+                        unindex(item, p);
+                    if (METRICS) {
+                        metrics.polls.increment();
+                        recordLatency(p);
+                    }
+                    if (++n == maxElements) {
+                        updateHead(h, ((q = p.next) != null) ? q : p);
+                        action.accept(item);
+                        return n;
+                    }
+                    action.accept(item);
+                }
+                if ((q = p.next) == null) {
+                    updateHead(h, p);
+                    return n;
+                }
+                else if (p == q) {
+                    // Another consumer moved head past p; the items
+                    // already claimed stay claimed.
+                    if (METRICS)
+                        metrics.pollRestarts.increment();
+                    continue restartFromHead;
+                }
+                else
+                    p = q;
+            }
+        }
+    }
+
+    /**
+     * Removes at most the given number of available elements from this
+     * queue and adds them to the given collection, in queue order.  See
+     * {@link #drain} for how the batch is claimed.
+     *
+     * <p>A failure encountered while attempting to add elements to
+     * collection {@code c} may result in elements being in neither,
+     * either or both collections when the associated exception is
+     * thrown.
+     *
+     * @param c the collection to transfer elements into
+     * @param maxElements the maximum number of elements to transfer
+     * @return the number of elements transferred
+     * @throws NullPointerException if the specified collection is null
+     * @throws IllegalArgumentException if the specified collection is this
+     *         queue
+     */
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        checkNotNull(c);
+        if (c == this)
+            throw new IllegalArgumentException();
+        return drain(c::add, maxElements);
+    }
+
     /**
      * Returns an array containing all of the elements in this queue, in
      * proper sequence.
@@ -748,7 +1425,13 @@ public class SomeQueue<E> extends AbstractQueue<E>
             Node<E> l = lastRet;
             if (l == null) throw new IllegalStateException();
             // rely on a future traversal to relink.
-            l.item = null;
+            E item = l.item;
+            if (item != null && l.casItem(item, null)) {
+                if (count != null)
+                    count.decrement();
+                if (index != null)
+                    unindex(item, l);
+            }
             lastRet = null;
         }
     }
@@ -792,9 +1475,11 @@ public class SomeQueue<E> extends AbstractQueue<E>
         // Read in elements until trailing null sentinel found
         Node<E> h = null, t = null;
         Object item;
+        long n = 0;
         while ((item = s.readObject()) != null) {
+            ++n;
             @SuppressWarnings("unchecked")
-            Node<E> newNode = new Node<E>((E) item);
+            Node<E> newNode = stampedNode((E) item);
             if (h == null)
                 h = t = newNode;
             else {
@@ -806,6 +1491,20 @@ public class SomeQueue<E> extends AbstractQueue<E>
             h = t = new Node<E>(null);
         head = h;
         tail = t;
+        if (indexMode != null && indexMode != IndexMode.NONE) {
+            index = new ConcurrentHashMap<>();
+            for (Node<E> p = h; p != null; p = p.next)
+                if (p.item != null)
+                    index.put(indexKey(p.item), p);
+        }
+        if (counting) {
+            count = new LongAdder();
+            count.add(n);
+        }
+        if (METRICS)
+            metrics = new SomeQueueMetrics();
+        if (timestamped)
+            dropped = new LongAdder();
     }
 
     /** A customized variant of Spliterators.IteratorSpliterator */
@@ -886,7 +1585,11 @@ public class SomeQueue<E> extends AbstractQueue<E>
             return false;
         }
 
-        public long estimateSize() { return Long.MAX_VALUE; }
+        public long estimateSize() {
+            if (exhausted)
+                return 0L;
+            return (queue.count != null) ? queue.approximateSize() : Long.MAX_VALUE;
+        }
 
         public int characteristics() {
             return Spliterator.ORDERED | Spliterator.NONNULL |
@@ -902,6 +1605,8 @@ public class SomeQueue<E> extends AbstractQueue<E>
      *
      * <p>The {@code Spliterator} reports {@link Spliterator#CONCURRENT},
      * {@link Spliterator#ORDERED}, and {@link Spliterator#NONNULL}.
+     * In counting mode its {@code estimateSize} is the queue's
+     * {@link #approximateSize}.
      *
      * @implNote
      * The {@code Spliterator} implements {@code trySplit} to permit limited
@@ -915,6 +1620,80 @@ public class SomeQueue<E> extends AbstractQueue<E>
         return new CLQSpliterator<E>(this);
     }
 
+    /**
+     * The maximum size of array to allocate.
+     * Some VMs reserve some header words in an array.
+     */
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    /**
+     * Returns a {@link Spliterator} over a snapshot of at most the given
+     * number of elements, taken from the head of this queue.
+     *
+     * <p>The elements are copied into an array when this method is
+     * called; the returned spliterator does not reflect any later
+     * modification.  It reports {@link Spliterator#ORDERED},
+     * {@link Spliterator#NONNULL}, {@link Spliterator#IMMUTABLE},
+     * {@link Spliterator#SIZED} and {@link Spliterator#SUBSIZED}, and
+     * splits in halves, so unlike {@link #spliterator} it divides evenly
+     * among fork/join tasks.
+     *
+     * @param maxElements the maximum number of elements to capture
+     * @return a {@code Spliterator} over a snapshot of this queue
+     * @throws IllegalArgumentException if {@code maxElements} is negative
+     */
+    public Spliterator<E> snapshotSpliterator(int maxElements) {
+        if (maxElements < 0)
+            throw new IllegalArgumentException();
+        int cap = (int) Math.min(maxElements, (count != null) ? approximateSize() + 16 : 16);
+        Object[] a = new Object[cap];
+        int n = 0;
+        for (Node<E> p = first(); p != null && n < maxElements; p = succ(p)) {
+            E item = p.item;
+            if (item != null) {
+                if (n == a.length) {
+                    if (n >= MAX_ARRAY_SIZE)
+                        throw new OutOfMemoryError("Required array size too large");
+                    int newCap = (int) Math.min(Math.min((long) n + (n >> 1) + 1, MAX_ARRAY_SIZE),
+                            maxElements);
+                    a = Arrays.copyOf(a, newCap);
+                }
+                a[n++] = item;
+            }
+        }
+        return Spliterators.spliterator(a, 0, n,
+                Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE);
+    }
+
+    /**
+     * Returns a possibly parallel {@code Stream} over a snapshot of the
+     * elements in this queue, see {@link #snapshotSpliterator}.  Splitting
+     * the weakly consistent {@link #spliterator} only hands out small
+     * growing batches, which leaves most of a large queue to one thread.
+     *
+     * @return a possibly parallel {@code Stream} over the elements in this
+     *         queue
+     */
+    @Override
+    public Stream<E> parallelStream() {
+        return StreamSupport.stream(snapshotSpliterator(MAX_ARRAY_SIZE), true);
+    }
+
+    // head and tail are declared in the padding superclasses below, but
+    // SomeQueueAccess only ever names SomeQueue.
+
+    final boolean casHead(Node<E> cmp, Node<E> val) {
+        return SomeQueueAccess.casHead(this, cmp, val);
+    }
+
+    final boolean casTail(Node<E> cmp, Node<E> val) {
+        return SomeQueueAccess.casTail(this, cmp, val);
+    }
+
+    final boolean weakCasTailRelease(Node<E> cmp, Node<E> val) {
+        return SomeQueueAccess.weakCasTailRelease(this, cmp, val);
+    }
+
     /**
      * Throws NullPointerException if argument is null.
      *
@@ -924,32 +1703,58 @@ public class SomeQueue<E> extends AbstractQueue<E>
         if (v == null)
             throw new NullPointerException();
     }
+}
 
-    private boolean casTail(Node<E> cmp, Node<E> val) {
-        return UNSAFE.compareAndSwapObject(this, tailOffset, cmp, val);
-    }
+/*
+ * head and tail are placed in a chain of superclasses with padding in
+ * between, since HotSpot lays out superclass fields first and does not
+ * reorder fields across classes.  None of these classes is
+ * serializable, which keeps head and tail out of the serialized form.
+ */
 
-    private boolean casHead(Node<E> cmp, Node<E> val) {
-        return UNSAFE.compareAndSwapObject(this, headOffset, cmp, val);
-    }
+abstract class SomeQueuePad0<E> extends AbstractQueue<E> {
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
+
+abstract class SomeQueueHead<E> extends SomeQueuePad0<E> {
+    /**
+     * A node from which the first live (non-deleted) node (if any)
+     * can be reached in O(1) time.
+     * Invariants:
+     * - all live nodes are reachable from head via succ()
+     * - head != null
+     * - (tmp = head).next != tmp || tmp != head
+     * Non-invariants:
+     * - head.item may or may not be null.
+     * - it is permitted for tail to lag behind head, that is, for tail
+     *   to not be reachable from head!
+     */
+    volatile SomeQueue.Node<E> head;
+}
 
-    // Unsafe mechanics
+abstract class SomeQueuePad1<E> extends SomeQueueHead<E> {
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
 
-    private static final sun.misc.Unsafe UNSAFE;
-    private static final long headOffset;
-    private static final long tailOffset;
-    static {
-        try {
-            final Field field = Unsafe.class.getDeclaredField("theUnsafe");
-            field.setAccessible(true);
-            UNSAFE = (Unsafe) field.get(null);
-            Class<?> k = SomeQueue.class;
-            headOffset = UNSAFE.objectFieldOffset
-                    (k.getDeclaredField("head"));
-            tailOffset = UNSAFE.objectFieldOffset
-                    (k.getDeclaredField("tail"));
-        } catch (Exception e) {
-            throw new Error(e);
-        }
-    }
+abstract class SomeQueueTail<E> extends SomeQueuePad1<E> {
+    /**
+     * A node from which the last node on list (that is, the unique
+     * node with node.next == null) can be reached in O(1) time.
+     * Invariants:
+     * - the last node is always reachable from tail via succ()
+     * - tail != null
+     * Non-invariants:
+     * - tail.item may or may not be null.
+     * - it is permitted for tail to lag behind head, that is, for tail
+     *   to not be reachable from head!
+     * - tail.next may or may not be self-pointing to tail.
+     */
+    volatile SomeQueue.Node<E> tail;
+}
+
+abstract class SomeQueuePad2<E> extends SomeQueueTail<E> {
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+    long p10, p11, p12, p13, p14, p15, p16, p17;
 }
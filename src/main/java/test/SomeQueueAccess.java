@@ -0,0 +1,98 @@
+package test;
+
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+
+/**
+ * Field access for {@link SomeQueue} beyond plain volatile reads.
+ *
+ * <p>This is the Java 8 version, based on {@code sun.misc.Unsafe}.  The
+ * multi-release jar carries a {@code java.lang.invoke.VarHandle} based
+ * version of this class under {@code META-INF/versions/9} (source in
+ * {@code src/main/java9}), which is picked up on JDK 9 and later.  Both
+ * versions must keep the same methods and memory semantics.
+ *
+ * @author skywalker
+ */
+final class SomeQueueAccess {
+
+    private SomeQueueAccess() {
+    }
+
+    /**
+     * Plain store, only for nodes that are not published yet.
+     */
+    static <E> void putItemRelaxed(SomeQueue.Node<E> node, E item) {
+        UNSAFE.putObject(node, itemOffset, item);
+    }
+
+    static <E> boolean casItem(SomeQueue.Node<E> node, E cmp, E val) {
+        return UNSAFE.compareAndSwapObject(node, itemOffset, cmp, val);
+    }
+
+    /**
+     * Ordered (release) store.
+     */
+    static <E> void lazySetNext(SomeQueue.Node<E> node, SomeQueue.Node<E> val) {
+        UNSAFE.putOrderedObject(node, nextOffset, val);
+    }
+
+    static <E> boolean casNext(SomeQueue.Node<E> node, SomeQueue.Node<E> cmp, SomeQueue.Node<E> val) {
+        return UNSAFE.compareAndSwapObject(node, nextOffset, cmp, val);
+    }
+
+    static <E> boolean casHead(SomeQueue<E> queue, SomeQueue.Node<E> cmp, SomeQueue.Node<E> val) {
+        return UNSAFE.compareAndSwapObject(queue, headOffset, cmp, val);
+    }
+
+    static <E> boolean casTail(SomeQueue<E> queue, SomeQueue.Node<E> cmp, SomeQueue.Node<E> val) {
+        return UNSAFE.compareAndSwapObject(queue, tailOffset, cmp, val);
+    }
+
+    /**
+     * CAS that may fail spuriously and needs only release semantics.
+     * Unsafe offers nothing weaker than a full CAS, so this is one.
+     */
+    static <E> boolean weakCasTailRelease(SomeQueue<E> queue, SomeQueue.Node<E> cmp, SomeQueue.Node<E> val) {
+        return UNSAFE.compareAndSwapObject(queue, tailOffset, cmp, val);
+    }
+
+    // Unsafe mechanics
+
+    private static final sun.misc.Unsafe UNSAFE;
+    private static final long itemOffset;
+    private static final long nextOffset;
+    private static final long headOffset;
+    private static final long tailOffset;
+
+    /**
+     * A field of SomeQueue declared in one of its padding superclasses.
+     */
+    private static Field inheritedField(String name) throws NoSuchFieldException {
+        for (Class<?> k = SomeQueue.class; k != null; k = k.getSuperclass()) {
+            try {
+                return k.getDeclaredField(name);
+            } catch (NoSuchFieldException ignore) {
+            }
+        }
+        throw new NoSuchFieldException(name);
+    }
+
+    static {
+        try {
+            final Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            UNSAFE = (Unsafe) field.get(null);
+            Class<?> k = SomeQueue.Node.class;
+            itemOffset = UNSAFE.objectFieldOffset
+                    (k.getDeclaredField("item"));
+            nextOffset = UNSAFE.objectFieldOffset
+                    (k.getDeclaredField("next"));
+            headOffset = UNSAFE.objectFieldOffset(inheritedField("head"));
+            tailOffset = UNSAFE.objectFieldOffset(inheritedField("tail"));
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
@@ -0,0 +1,516 @@
+package test;
+
+import org.junit.Assert;
+import org.junit.Assume;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * {@link SomeQueue}的线性一致性(linearizability)测试.
+ * <p>
+ * 每一轮若干线程对同一个新队列执行随机生成的offer/poll/peek/remove/contains/迭代序列, 每个操作记录调用和返回
+ * 在全局时钟上的时间, 结束后用Wing&Gong算法(带memo的深度优先搜索)寻找一个与实时顺序相容、并且符合顺序FIFO队列
+ * 语义的全序, 找不到即失败. 迭代器只是弱一致的, 不参与线性化, 单独检查: 不重复, 不返回从未加入或者迭代开始前
+ * 已被取走的元素, 迭代期间一直存在的元素必须返回, 同一线程先后加入的元素保持先后顺序.
+ * </p>
+ * <p>
+ * 操作序列由种子决定, 失败时打印种子、轮次和完整历史, 用-Dtest.SomeQueue.seed=...可重放同样的操作序列
+ * (线程交错无法重放). 覆盖普通、counting、EQUALITY索引模式的{@link SomeQueue}以及{@link RecyclingSomeQueue}.
+ * </p>
+ * <p>
+ * soak模式: -Dtest.SomeQueue.soak=分钟数 -Dtest.SomeQueue.soakThreads=8~64, 或者直接运行main方法,
+ * 比如: java test.SomeQueueLinearizability 30 64. soak交替执行两个阶段:
+ * </p>
+ * <ul>
+ * <li>线性化: 线程按4个一组, 每组各自对自己的队列跑上面的检查, 所有核都在工作;</li>
+ * <li>混战: 所有线程共用一个长期存在的队列执行offer/poll/remove/迭代, 检查恰好一次、每个生产者的FIFO顺序、
+ * 迭代器不重复并保持生产者内顺序, 以及静止时counting模式的size.</li>
+ * </ul>
+ *
+ * @author skywalker
+ */
+public class SomeQueueLinearizability {
+
+    private static final int ROUNDS = 5_000;
+    private static final int THREADS = 4;
+    private static final int OPS_PER_THREAD = 5;
+
+    /**
+     * 操作种类.
+     */
+    private static final int OFFER = 0, POLL = 1, PEEK = 2, REMOVE = 3, CONTAINS = 4, ITERATE = 5;
+    private static final String[] NAMES = {"offer", "poll", "peek", "remove", "contains", "iterate"};
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final Supplier<Queue<Integer>>[] QUEUES = new Supplier[]{
+            SomeQueue::new,
+            () -> new SomeQueue<>(true),
+            () -> new SomeQueue<>(false, SomeQueue.IndexMode.EQUALITY),
+            RecyclingSomeQueue::new
+    };
+
+    /**
+     * 一次操作及其结果. inv/res是调用前和返回后读到的全局时钟.
+     */
+    private static final class Op {
+        final int thread;
+        final int kind;
+        final int arg;
+        Object result;
+        long inv, res;
+
+        Op(int thread, int kind, int arg) {
+            this.thread = thread;
+            this.kind = kind;
+            this.arg = arg;
+        }
+
+        void run(Queue<Integer> queue, AtomicLong clock) {
+            inv = clock.getAndIncrement();
+            switch (kind) {
+                case OFFER:
+                    result = queue.offer(arg);
+                    break;
+                case POLL:
+                    result = queue.poll();
+                    break;
+                case PEEK:
+                    result = queue.peek();
+                    break;
+                case REMOVE:
+                    result = queue.remove(arg);
+                    break;
+                case CONTAINS:
+                    result = queue.contains(arg);
+                    break;
+                default:
+                    List<Integer> seen = new ArrayList<>();
+                    for (Integer e : queue)
+                        seen.add(e);
+                    result = seen;
+            }
+            res = clock.getAndIncrement();
+        }
+
+        public String toString() {
+            return "T" + thread + " [" + inv + ", " + res + "] " + NAMES[kind]
+                    + (kind == OFFER || kind == REMOVE || kind == CONTAINS ? "(" + arg + ")" : "()")
+                    + " = " + result;
+        }
+    }
+
+    /**
+     * 一轮: 初始元素和每个线程的操作序列.
+     */
+    private static final class Round {
+        final List<Integer> initial = new ArrayList<>();
+        final Op[][] scripts;
+
+        Round(Random random, int threads, int opsPerThread) {
+            int initialSize = random.nextInt(3);
+            for (int i = 0; i < initialSize; i++)
+                initial.add(1000 + i);
+            scripts = new Op[threads][opsPerThread];
+            List<Integer> values = new ArrayList<>(initial);
+            for (int t = 0; t < threads; t++)
+                for (int i = 0; i < opsPerThread; i++)
+                    values.add(t * opsPerThread + i + 1);
+            for (int t = 0; t < threads; t++) {
+                for (int i = 0; i < opsPerThread; i++) {
+                    int r = random.nextInt(100);
+                    int kind = r < 40 ? OFFER : r < 70 ? POLL : r < 78 ? PEEK : r < 88 ? REMOVE : r < 95 ? CONTAINS : ITERATE;
+                    int arg = kind == OFFER ? t * opsPerThread + i + 1 : values.get(random.nextInt(values.size()));
+                    scripts[t][i] = new Op(t, kind, arg);
+                }
+            }
+        }
+
+        Queue<Integer> newQueue(Supplier<Queue<Integer>> factory) {
+            Queue<Integer> queue = factory.get();
+            queue.addAll(initial);
+            return queue;
+        }
+
+        List<Op> history() {
+            List<Op> ops = new ArrayList<>();
+            for (Op[] script : scripts)
+                ops.addAll(Arrays.asList(script));
+            return ops;
+        }
+    }
+
+    @org.junit.Test
+    public void linearizable() throws Exception {
+        long seed = Long.getLong("test.SomeQueue.seed", System.nanoTime());
+        System.out.println("seed=" + seed);
+        for (int q = 0; q < QUEUES.length; q++)
+            checkRounds(QUEUES[q], seed + q, ROUNDS, THREADS, OPS_PER_THREAD);
+    }
+
+    /**
+     * 只在指定了-Dtest.SomeQueue.soak时运行.
+     */
+    @org.junit.Test
+    public void soak() throws Exception {
+        long minutes = Long.getLong("test.SomeQueue.soak", 0L);
+        Assume.assumeTrue(minutes > 0);
+        soak(minutes, Integer.getInteger("test.SomeQueue.soakThreads", 16));
+    }
+
+    public static void main(String[] args) throws Exception {
+        long minutes = args.length > 0 ? Long.parseLong(args[0]) : 10;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        soak(minutes, threads);
+        System.out.println("ok");
+    }
+
+    private static void soak(long minutes, int threads) throws Exception {
+        if (threads < THREADS)
+            throw new IllegalArgumentException("at least " + THREADS + " threads");
+        long seed = Long.getLong("test.SomeQueue.seed", System.nanoTime());
+        System.out.println("seed=" + seed + ", threads=" + threads + ", minutes=" + minutes);
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(minutes);
+        for (int phase = 0; System.nanoTime() - deadline < 0; phase++) {
+            Supplier<Queue<Integer>> factory = QUEUES[phase % QUEUES.length];
+            long phaseSeed = seed + phase * 1_000_003L;
+            // 线性化阶段: 每组一个线程负责驱动, 组内THREADS个线程
+            int groups = threads / THREADS;
+            Thread[] drivers = new Thread[groups];
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            for (int g = 0; g < groups; g++) {
+                long groupSeed = phaseSeed + g;
+                drivers[g] = new Thread(() -> {
+                    try {
+                        checkRounds(factory, groupSeed, ROUNDS, THREADS, OPS_PER_THREAD);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                });
+                drivers[g].start();
+            }
+            for (Thread driver : drivers)
+                driver.join();
+            if (failure.get() != null)
+                throw new AssertionError("phase " + phase, failure.get());
+            churn(factory, threads, TimeUnit.SECONDS.toNanos(5));
+            System.out.println("phase " + phase + " ok");
+        }
+    }
+
+    /**
+     * 执行若干轮, 每轮检查一次. 调用线程是其中的第0个线程.
+     */
+    private static void checkRounds(Supplier<Queue<Integer>> factory, long seed, int rounds, int threads,
+                                    int opsPerThread) throws Exception {
+        Random random = new Random(seed);
+        AtomicLong clock = new AtomicLong();
+        CyclicBarrier start = new CyclicBarrier(threads);
+        CyclicBarrier end = new CyclicBarrier(threads);
+        Round[] current = new Round[1];
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Queue<Integer>[] queue = new Queue[1];
+        Thread[] others = new Thread[threads - 1];
+        for (int t = 1; t < threads; t++) {
+            int me = t;
+            others[t - 1] = new Thread(() -> {
+                try {
+                    for (;;) {
+                        start.await();
+                        if (current[0] == null)
+                            return;
+                        for (Op op : current[0].scripts[me])
+                            op.run(queue[0], clock);
+                        end.await();
+                    }
+                } catch (InterruptedException | BrokenBarrierException ignore) {
+                }
+            });
+            others[t - 1].start();
+        }
+        try {
+            for (int round = 0; round < rounds; round++) {
+                // barrier保证了current与queue对其它线程可见
+                Round r = new Round(random, threads, opsPerThread);
+                current[0] = r;
+                queue[0] = r.newQueue(factory);
+                start.await();
+                for (Op op : r.scripts[0])
+                    op.run(queue[0], clock);
+                end.await();
+                String error = check(r);
+                if (error != null) {
+                    StringBuilder sb = new StringBuilder(error).append(", queue=").append(queue[0].getClass().getSimpleName())
+                            .append(", seed=").append(seed).append(", round=").append(round)
+                            .append(", initial=").append(r.initial);
+                    for (Op op : sortedByInvocation(r.history()))
+                        sb.append("\n  ").append(op);
+                    Assert.fail(sb.toString());
+                }
+            }
+        } finally {
+            current[0] = null;
+            start.reset();
+            for (Thread other : others)
+                other.interrupt();
+        }
+    }
+
+    private static List<Op> sortedByInvocation(List<Op> ops) {
+        List<Op> sorted = new ArrayList<>(ops);
+        sorted.sort((a, b) -> Long.compare(a.inv, b.inv));
+        return sorted;
+    }
+
+    /**
+     * @return 错误描述, 没有问题时返回null
+     */
+    private static String check(Round round) {
+        List<Op> ops = new ArrayList<>();
+        List<Op> iterations = new ArrayList<>();
+        for (Op op : round.history())
+            (op.kind == ITERATE ? iterations : ops).add(op);
+        if (!new Linearizer(ops, round.initial).search())
+            return "not linearizable";
+        for (Op it : iterations) {
+            String error = checkIteration(it, round, ops);
+            if (error != null)
+                return error;
+        }
+        return null;
+    }
+
+    /**
+     * Wing&Gong: 每一步从尚未线性化的操作中选一个, 它的调用必须早于所有未线性化操作中最早的返回, 在顺序模型上
+     * 执行它并比较结果. 已线性化的集合加上模型状态相同的搜索分支只走一次.
+     */
+    private static final class Linearizer {
+        private final Op[] ops;
+        private final List<Integer> initial;
+        private final Set<String> visited = new HashSet<>();
+
+        Linearizer(List<Op> ops, List<Integer> initial) {
+            if (ops.size() > 64)
+                throw new IllegalArgumentException("too many operations: " + ops.size());
+            this.ops = ops.toArray(new Op[0]);
+            this.initial = initial;
+        }
+
+        boolean search() {
+            return search(0L, new ArrayDeque<>(initial));
+        }
+
+        private boolean search(long done, ArrayDeque<Integer> model) {
+            if (Long.bitCount(done) == ops.length)
+                return true;
+            if (!visited.add(done + ":" + model))
+                return false;
+            long minRes = Long.MAX_VALUE;
+            for (int i = 0; i < ops.length; i++)
+                if ((done & (1L << i)) == 0)
+                    minRes = Math.min(minRes, ops[i].res);
+            for (int i = 0; i < ops.length; i++) {
+                if ((done & (1L << i)) != 0 || ops[i].inv > minRes)
+                    continue;
+                ArrayDeque<Integer> next = new ArrayDeque<>(model);
+                if (apply(ops[i], next) && search(done | (1L << i), next))
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * 在顺序FIFO队列上执行op.
+         *
+         * @return 结果是否与实际结果相同
+         */
+        private static boolean apply(Op op, ArrayDeque<Integer> model) {
+            switch (op.kind) {
+                case OFFER:
+                    // 索引模式拒绝重复元素, 这里的值都不重复
+                    model.addLast(op.arg);
+                    return Boolean.TRUE.equals(op.result);
+                case POLL:
+                    return equal(model.pollFirst(), op.result);
+                case PEEK:
+                    return equal(model.peekFirst(), op.result);
+                case REMOVE:
+                    return model.remove(op.arg) == (Boolean) op.result;
+                default:
+                    return model.contains(op.arg) == (Boolean) op.result;
+            }
+        }
+
+        private static boolean equal(Object a, Object b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    /**
+     * 弱一致迭代器的检查.
+     */
+    private static String checkIteration(Op it, Round round, List<Op> ops) {
+        @SuppressWarnings("unchecked")
+        List<Integer> seen = (List<Integer>) it.result;
+        if (new HashSet<>(seen).size() != seen.size())
+            return "duplicates in iteration " + it;
+        Map<Integer, Op> offers = new HashMap<>();
+        Map<Integer, Op> removals = new HashMap<>();
+        for (Op op : ops) {
+            if (op.kind == OFFER)
+                offers.put(op.arg, op);
+            else if (op.kind == POLL && op.result != null)
+                removals.put((Integer) op.result, op);
+            else if (op.kind == REMOVE && (Boolean) op.result)
+                removals.put(op.arg, op);
+        }
+        for (Integer e : seen) {
+            Op offer = offers.get(e);
+            if (offer == null ? !round.initial.contains(e) : offer.inv > it.res)
+                return "iteration returned " + e + " before it was offered: " + it;
+            Op removal = removals.get(e);
+            if (removal != null && removal.res < it.inv)
+                return "iteration returned " + e + " after it was removed: " + it;
+        }
+        Set<Integer> candidates = new HashSet<>(round.initial);
+        candidates.addAll(offers.keySet());
+        for (Integer e : candidates) {
+            Op offer = offers.get(e);
+            Op removal = removals.get(e);
+            boolean presentThroughout = (offer == null || offer.res < it.inv) && (removal == null || removal.inv > it.res);
+            if (presentThroughout && !seen.contains(e))
+                return "iteration missed " + e + ": " + it;
+        }
+        // 同一线程先后加入(或初始就有)的元素, 迭代顺序与加入顺序相同
+        for (int i = 0; i < seen.size(); i++) {
+            for (int j = i + 1; j < seen.size(); j++) {
+                Op a = offers.get(seen.get(i)), b = offers.get(seen.get(j));
+                boolean reversed = (a == null) ? b == null && round.initial.indexOf(seen.get(i)) > round.initial.indexOf(seen.get(j))
+                        : b == null || b.res < a.inv;
+                if (reversed)
+                    return "iteration out of order: " + it;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 混战阶段: 所有线程共用一个队列, 每个线程既生产也消费, 元素是序号 * threads + 线程.
+     */
+    private static void churn(Supplier<Queue<Integer>> factory, int threads, long nanos) throws Exception {
+        Queue<Integer> queue = factory.get();
+        int[] offered = new int[threads];
+        List<List<Integer>> taken = new ArrayList<>();
+        for (int t = 0; t < threads; t++)
+            taken.add(new ArrayList<>());
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CyclicBarrier start = new CyclicBarrier(threads);
+        long deadline = System.nanoTime() + nanos;
+        int maxSeq = Integer.MAX_VALUE / threads;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int me = t;
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                List<Integer> mine = taken.get(me);
+                // 每个生产者最后一次被本线程取到的序号, 必须递增
+                int[] last = new int[threads];
+                Arrays.fill(last, -1);
+                int seq = 0;
+                try {
+                    start.await();
+                    while (System.nanoTime() - deadline < 0 && failure.get() == null) {
+                        int r = random.nextInt(100);
+                        if (r < 50 && seq < maxSeq) {
+                            queue.offer(seq++ * threads + me);
+                        } else if (r < 90) {
+                            Integer e = queue.poll();
+                            if (e != null) {
+                                int producer = e % threads, s = e / threads;
+                                if (s <= last[producer])
+                                    throw new AssertionError("poll out of order: " + s + " after " + last[producer]
+                                            + " from producer " + producer);
+                                last[producer] = s;
+                                mine.add(e);
+                            }
+                        } else if (r < 98) {
+                            if (seq > 0) {
+                                Integer e = random.nextInt(seq) * threads + me;
+                                if (queue.remove(e))
+                                    mine.add(e);
+                            }
+                        } else {
+                            int[] order = new int[threads];
+                            Arrays.fill(order, -1);
+                            Set<Integer> seen = new HashSet<>();
+                            for (Iterator<Integer> i = queue.iterator(); i.hasNext(); ) {
+                                Integer e = i.next();
+                                if (!seen.add(e))
+                                    throw new AssertionError("iterator returned " + e + " twice");
+                                int producer = e % threads, s = e / threads;
+                                if (s <= order[producer])
+                                    throw new AssertionError("iterator out of order for producer " + producer);
+                                order[producer] = s;
+                            }
+                        }
+                    }
+                    offered[me] = seq;
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                    start.reset();
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+        if (failure.get() != null)
+            throw new AssertionError("churn on " + queue.getClass().getSimpleName(), failure.get());
+        // 静止之后: size准确, 每个元素恰好被取走一次
+        int remaining = 0;
+        List<Integer> drained = new ArrayList<>();
+        for (Integer e : queue) {
+            drained.add(e);
+            remaining++;
+        }
+        Assert.assertEquals("size at rest", remaining, queue.size());
+        queue.clear();
+        Assert.assertTrue("empty after drain", queue.isEmpty());
+        long total = 0;
+        for (int n : offered)
+            total += n;
+        boolean[][] once = new boolean[threads][];
+        for (int t = 0; t < threads; t++)
+            once[t] = new boolean[offered[t]];
+        List<List<Integer>> all = new ArrayList<>(taken);
+        all.add(drained);
+        long count = 0;
+        for (List<Integer> list : all) {
+            for (Integer e : list) {
+                int producer = e % threads, s = e / threads;
+                if (once[producer][s])
+                    throw new AssertionError("taken twice: " + s + " from producer " + producer);
+                once[producer][s] = true;
+                count++;
+            }
+        }
+        Assert.assertEquals("elements lost", total, count);
+    }
+
+}
@@ -0,0 +1,305 @@
+package test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Contention counters of a {@link SomeQueue}, kept when the queue runs in
+ * metrics mode ({@code -Dtest.SomeQueue.metrics=true}).
+ *
+ * <p>Every counter is a {@link LongAdder}, whose cells are picked per
+ * thread, so threads hitting the same queue rarely update the same cache
+ * line.  Reads sum the cells and are only as consistent as that.
+ *
+ * <ul>
+ * <li>CAS failures: a lost casNext in offer, a failed casTail after an
+ * offer, a lost casItem in poll;</li>
+ * <li>restarts: offer falling off the list ({@code p == q}), and poll,
+ * drain, peek and first restarting from head;</li>
+ * <li>hops: nodes an offer walked from tail to the last node, and nodes
+ * a poll walked from head to the node it took;</li>
+ * <li>latency: time from offer to poll or drain of an element, kept in
+ * a histogram of power-of-two buckets.</li>
+ * </ul>
+ *
+ * <p>{@link SomeLaneQueue} keeps one per lane, always on, in which only
+ * offers, polls, empty polls and latency are counted.
+ *
+ * @author skywalker
+ */
+public final class SomeQueueMetrics implements SomeQueueMetricsMXBean {
+
+    final LongAdder offers = new LongAdder();
+    final LongAdder offerCasFailures = new LongAdder();
+    final LongAdder tailCasFailures = new LongAdder();
+    final LongAdder offerRestarts = new LongAdder();
+    final LongAdder tailHops = new LongAdder();
+
+    final LongAdder polls = new LongAdder();
+    final LongAdder emptyPolls = new LongAdder();
+    final LongAdder pollCasFailures = new LongAdder();
+    final LongAdder pollRestarts = new LongAdder();
+    final LongAdder headHops = new LongAdder();
+
+    final LongAdder peekRestarts = new LongAdder();
+
+    /** Bucket i counts latencies in [2^(i-1), 2^i) nanoseconds. */
+    private final LongAdder[] latencyBuckets = new LongAdder[64];
+    private final LongAdder latencySum = new LongAdder();
+    private final LongAccumulator latencyMax = new LongAccumulator(Math::max, 0L);
+
+    private volatile ObjectName objectName;
+
+    SomeQueueMetrics() {
+        for (int i = 0; i < latencyBuckets.length; i++)
+            latencyBuckets[i] = new LongAdder();
+    }
+
+    void recordLatency(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        latencyBuckets[64 - Long.numberOfLeadingZeros(nanos)].increment();
+        latencySum.add(nanos);
+        latencyMax.accumulate(nanos);
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server as
+     * {@code test:type=SomeQueue,name=<name>}.
+     *
+     * @param name distinguishes this queue from others
+     * @return the object name
+     * @throws IllegalStateException if the registration fails
+     */
+    public ObjectName register(String name) {
+        try {
+            ObjectName on = new ObjectName("test:type=SomeQueue,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+            objectName = on;
+            return on;
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Removes these metrics from the platform MBean server, if registered.
+     */
+    public void unregister() {
+        ObjectName on = objectName;
+        if (on == null)
+            return;
+        objectName = null;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(on);
+        } catch (JMException ignore) {
+        }
+    }
+
+    /**
+     * Returns the current values of all counters.
+     *
+     * @return a snapshot of these metrics
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    public long getOffers() {
+        return offers.sum();
+    }
+
+    public long getOfferCasFailures() {
+        return offerCasFailures.sum();
+    }
+
+    public long getTailCasFailures() {
+        return tailCasFailures.sum();
+    }
+
+    public long getOfferRestarts() {
+        return offerRestarts.sum();
+    }
+
+    public double getMeanTailHops() {
+        return mean(tailHops.sum(), offers.sum());
+    }
+
+    public long getPolls() {
+        return polls.sum();
+    }
+
+    public long getEmptyPolls() {
+        return emptyPolls.sum();
+    }
+
+    public long getPollCasFailures() {
+        return pollCasFailures.sum();
+    }
+
+    public long getPollRestarts() {
+        return pollRestarts.sum();
+    }
+
+    public double getMeanHeadHops() {
+        return mean(headHops.sum(), polls.sum());
+    }
+
+    public long getPeekRestarts() {
+        return peekRestarts.sum();
+    }
+
+    public double getMeanLatencyNanos() {
+        return snapshot().getMeanLatencyNanos();
+    }
+
+    public long getP50LatencyNanos() {
+        return snapshot().latencyPercentileNanos(0.5);
+    }
+
+    public long getP99LatencyNanos() {
+        return snapshot().latencyPercentileNanos(0.99);
+    }
+
+    public long getMaxLatencyNanos() {
+        return latencyMax.get();
+    }
+
+    private static double mean(long sum, long n) {
+        return (n == 0) ? 0.0 : (double) sum / n;
+    }
+
+    /**
+     * The values of {@link SomeQueueMetrics} at one point in time.  Each
+     * counter is read separately, so counters updated concurrently with
+     * the snapshot may not match each other exactly.
+     */
+    public static final class Snapshot {
+        private final long offers, offerCasFailures, tailCasFailures, offerRestarts, tailHops;
+        private final long polls, emptyPolls, pollCasFailures, pollRestarts, headHops;
+        private final long peekRestarts;
+        private final long[] latencyBuckets;
+        private final long latencyCount, latencySum, latencyMax;
+
+        Snapshot(SomeQueueMetrics m) {
+            offers = m.offers.sum();
+            offerCasFailures = m.offerCasFailures.sum();
+            tailCasFailures = m.tailCasFailures.sum();
+            offerRestarts = m.offerRestarts.sum();
+            tailHops = m.tailHops.sum();
+            polls = m.polls.sum();
+            emptyPolls = m.emptyPolls.sum();
+            pollCasFailures = m.pollCasFailures.sum();
+            pollRestarts = m.pollRestarts.sum();
+            headHops = m.headHops.sum();
+            peekRestarts = m.peekRestarts.sum();
+            latencyBuckets = new long[m.latencyBuckets.length];
+            long n = 0;
+            for (int i = 0; i < latencyBuckets.length; i++)
+                n += (latencyBuckets[i] = m.latencyBuckets[i].sum());
+            latencyCount = n;
+            latencySum = m.latencySum.sum();
+            latencyMax = m.latencyMax.get();
+        }
+
+        public long getOffers() {
+            return offers;
+        }
+
+        public long getOfferCasFailures() {
+            return offerCasFailures;
+        }
+
+        public long getTailCasFailures() {
+            return tailCasFailures;
+        }
+
+        public long getOfferRestarts() {
+            return offerRestarts;
+        }
+
+        public double getMeanTailHops() {
+            return mean(tailHops, offers);
+        }
+
+        public long getPolls() {
+            return polls;
+        }
+
+        public long getEmptyPolls() {
+            return emptyPolls;
+        }
+
+        public long getPollCasFailures() {
+            return pollCasFailures;
+        }
+
+        public long getPollRestarts() {
+            return pollRestarts;
+        }
+
+        public double getMeanHeadHops() {
+            return mean(headHops, polls);
+        }
+
+        public long getPeekRestarts() {
+            return peekRestarts;
+        }
+
+        public double getMeanLatencyNanos() {
+            return mean(latencySum, latencyCount);
+        }
+
+        public long getMaxLatencyNanos() {
+            return latencyMax;
+        }
+
+        /**
+         * Returns the number of latencies recorded in each bucket; bucket
+         * {@code i} covers {@code [2^(i-1), 2^i)} nanoseconds.
+         *
+         * @return the latency histogram
+         */
+        public long[] getLatencyBuckets() {
+            return latencyBuckets.clone();
+        }
+
+        /**
+         * Returns an upper bound of the given latency percentile, the
+         * upper end of the bucket it falls into.
+         *
+         * @param fraction the percentile, between 0 and 1
+         * @return the latency in nanoseconds, or 0 if none was recorded
+         */
+        public long latencyPercentileNanos(double fraction) {
+            if (latencyCount == 0)
+                return 0L;
+            long rank = (long) Math.ceil(fraction * latencyCount);
+            long seen = 0;
+            for (int i = 0; i < latencyBuckets.length; i++) {
+                seen += latencyBuckets[i];
+                if (seen >= rank && seen > 0)
+                    return Math.min((i == 63) ? Long.MAX_VALUE : (1L << i) - 1, latencyMax);
+            }
+            return latencyMax;
+        }
+
+        public String toString() {
+            return "offers=" + offers + ", offerCasFailures=" + offerCasFailures
+                    + ", tailCasFailures=" + tailCasFailures + ", offerRestarts=" + offerRestarts
+                    + ", meanTailHops=" + getMeanTailHops()
+                    + ", polls=" + polls + ", emptyPolls=" + emptyPolls
+                    + ", pollCasFailures=" + pollCasFailures + ", pollRestarts=" + pollRestarts
+                    + ", meanHeadHops=" + getMeanHeadHops() + ", peekRestarts=" + peekRestarts
+                    + ", meanLatencyNanos=" + getMeanLatencyNanos()
+                    + ", p99LatencyNanos=" + latencyPercentileNanos(0.99)
+                    + ", maxLatencyNanos=" + latencyMax
+                    + ", latencyBuckets=" + Arrays.toString(latencyBuckets);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package test;
+
+/**
+ * JMX view of {@link SomeQueueMetrics}.  All counts are totals since the
+ * queue was created; latencies are in nanoseconds.
+ *
+ * @author skywalker
+ */
+public interface SomeQueueMetricsMXBean {
+
+    long getOffers();
+
+    long getOfferCasFailures();
+
+    long getTailCasFailures();
+
+    long getOfferRestarts();
+
+    double getMeanTailHops();
+
+    long getPolls();
+
+    long getEmptyPolls();
+
+    long getPollCasFailures();
+
+    long getPollRestarts();
+
+    double getMeanHeadHops();
+
+    long getPeekRestarts();
+
+    double getMeanLatencyNanos();
+
+    long getP50LatencyNanos();
+
+    long getP99LatencyNanos();
+
+    long getMaxLatencyNanos();
+
+}
@@ -0,0 +1,151 @@
+package test;
+
+import org.junit.Assert;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * jcstress风格的{@link SomeQueue}并发测试: 两个线程对同一个新状态同时执行actor, 结束后由arbiter给出结果,
+ * 统计各结果出现的次数, 禁止的结果出现即失败.
+ * <p>
+ * 用-Dtest.SomeQueue.relaxedTail=true运行可测试relaxed tail模式, 而release语义的CAS只在JDK 9+上从
+ * multi-release jar加载{@link SomeQueueAccess}时才生效.
+ * </p>
+ *
+ * @author skywalker
+ */
+public class SomeQueueStress {
+
+    private static final int ITERATIONS = 200_000;
+
+    /**
+     * 构造时普通写入字段的元素, 用来检查发布是否安全.
+     */
+    private static final class Payload {
+        int a;
+        int b;
+
+        Payload() {
+            a = 1;
+            b = 2;
+        }
+    }
+
+    /**
+     * 一个线程offer, 另一个poll, poll到的元素必须是完整初始化的.
+     */
+    @org.junit.Test
+    public void publication() throws Exception {
+        class State {
+            final SomeQueue<Payload> queue = new SomeQueue<>();
+            Payload polled;
+        }
+        Map<String, Long> outcomes = race(State::new,
+                s -> s.queue.offer(new Payload()),
+                s -> s.polled = s.queue.poll(),
+                s -> s.polled == null ? "empty" : (s.polled.a + ", " + s.polled.b));
+        assertOnly(outcomes, "empty", "1, 2");
+    }
+
+    /**
+     * offer与poll竞争同一个元素, 元素要么被poll取走, 要么还在队列里, 既不能丢也不能重复.
+     */
+    @org.junit.Test
+    public void offerPoll() throws Exception {
+        class State {
+            final SomeQueue<Integer> queue = new SomeQueue<>();
+            Integer polled;
+        }
+        Map<String, Long> outcomes = race(State::new,
+                s -> s.queue.offer(1),
+                s -> s.polled = s.queue.poll(),
+                s -> s.polled + ", " + s.queue);
+        assertOnly(outcomes, "1, []", "null, [1]");
+    }
+
+    /**
+     * 两个生产者在已有元素(tail落后)的队列上同时offer, 触发tail的两步跳跃, 结束后两个元素都在队列里,
+     * 并且从tail出发的offer仍然能找到最后一个节点.
+     */
+    @org.junit.Test
+    public void tailHop() throws Exception {
+        class State {
+            final SomeQueue<Integer> queue = new SomeQueue<>();
+
+            State() {
+                queue.offer(0);
+            }
+        }
+        Map<String, Long> outcomes = race(State::new,
+                s -> {
+                    s.queue.offer(1);
+                    s.queue.offer(3);
+                },
+                s -> {
+                    s.queue.offer(2);
+                    s.queue.offer(4);
+                },
+                s -> {
+                    s.queue.offer(5);
+                    StringBuilder sb = new StringBuilder();
+                    for (Integer e; (e = s.queue.poll()) != null; )
+                        sb.append(e);
+                    // 只关心每个生产者自己的顺序
+                    String r = sb.toString();
+                    boolean ordered = r.length() == 6 && r.charAt(0) == '0' && r.charAt(5) == '5'
+                            && r.indexOf('1') < r.indexOf('3') && r.indexOf('2') < r.indexOf('4');
+                    return ordered ? "ordered" : r;
+                });
+        assertOnly(outcomes, "ordered");
+    }
+
+    /**
+     * 并发执行两个actor若干轮, 每轮使用新的状态.
+     *
+     * @return 结果 -> 出现次数
+     */
+    private static <S> Map<String, Long> race(Supplier<S> stateFactory, Consumer<S> actor1, Consumer<S> actor2,
+                                              Function<S, String> arbiter) throws Exception {
+        Map<String, Long> outcomes = new TreeMap<>();
+        CyclicBarrier start = new CyclicBarrier(2);
+        CyclicBarrier end = new CyclicBarrier(2);
+        @SuppressWarnings("unchecked")
+        S[] states = (S[]) new Object[1];
+        Thread other = new Thread(() -> {
+            try {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    start.await();
+                    actor2.accept(states[0]);
+                    end.await();
+                }
+            } catch (InterruptedException | BrokenBarrierException ignore) {
+            }
+        });
+        other.start();
+        for (int i = 0; i < ITERATIONS; i++) {
+            // barrier保证了states[0]对另一个线程可见
+            states[0] = stateFactory.get();
+            start.await();
+            actor1.accept(states[0]);
+            end.await();
+            outcomes.merge(arbiter.apply(states[0]), 1L, Long::sum);
+        }
+        other.join();
+        System.out.println(outcomes);
+        return outcomes;
+    }
+
+    private static void assertOnly(Map<String, Long> outcomes, String... allowed) {
+        Map<String, Long> forbidden = new TreeMap<>(outcomes);
+        for (String outcome : allowed)
+            forbidden.remove(outcome);
+        Assert.assertTrue("Forbidden outcomes: " + forbidden, forbidden.isEmpty());
+    }
+
+}
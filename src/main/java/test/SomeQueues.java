@@ -0,0 +1,65 @@
+package test;
+
+import java.util.Queue;
+
+/**
+ * Creates the unbounded linked queue that fits how many threads will
+ * offer and poll.  The fewer writers a side has, the fewer CASes it
+ * needs:
+ *
+ * <pre>
+ *   topology  queue               offer                poll
+ *   SPSC      SomeSpscQueue       ordered stores       ordered stores
+ *   MPSC      SomeMpscQueue       getAndSet tail       ordered stores
+ *   SPMC      SomeSpmcQueue       ordered stores       casHead
+ *   MPMC      SomeQueue           casNext, casTail     casItem, casHead
+ * </pre>
+ *
+ * The topology is a promise of the caller and is not checked; breaking
+ * it corrupts the single-threaded side of the queue.
+ *
+ * @author skywalker
+ */
+public final class SomeQueues {
+
+    /**
+     * How many threads produce into and consume from a queue.
+     */
+    public enum Topology {
+        /** single producer, single consumer */
+        SPSC,
+        /** multiple producers, single consumer */
+        MPSC,
+        /** single producer, multiple consumers */
+        SPMC,
+        /** multiple producers, multiple consumers */
+        MPMC
+    }
+
+    private SomeQueues() {
+    }
+
+    /**
+     * Creates an empty queue for the given topology.
+     *
+     * @param topology how the queue will be used
+     * @param <E> the type of elements held in the queue
+     * @return a new queue
+     * @throws NullPointerException if topology is null
+     */
+    public static <E> Queue<E> newQueue(Topology topology) {
+        switch (topology) {
+            case SPSC:
+                return new SomeSpscQueue<>();
+            case MPSC:
+                return new SomeMpscQueue<>();
+            case SPMC:
+                return new SomeSpmcQueue<>();
+            case MPMC:
+                return new SomeQueue<>();
+            default:
+                throw new AssertionError(topology);
+        }
+    }
+
+}
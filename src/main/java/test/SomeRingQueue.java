@@ -0,0 +1,321 @@
+package test;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A bounded thread-safe {@linkplain Queue queue} backed by a preallocated
+ * ring of slots, for use where {@link SomeQueue}'s per-element node
+ * allocation is too expensive.  This queue orders elements FIFO
+ * (first-in-first-out) and, like {@link SomeQueue}, does not permit
+ * {@code null} elements.
+ *
+ * <p>This implementation employs the bounded multi-producer/multi-consumer
+ * algorithm described by Dmitry Vyukov: every slot carries a sequence
+ * number telling producers and consumers on which lap the slot may be
+ * written or read.  Neither {@code offer} nor {@code poll} allocates.
+ * When the ring is full {@code offer} returns {@code false}, which is the
+ * only form of back-pressure; callers decide whether to retry, drop or
+ * block.
+ *
+ * <p>Iterators are <i>weakly consistent</i> and do not support
+ * {@link Iterator#remove}.
+ *
+ * <p>Beware that {@code size} is only an estimate when producers or
+ * consumers are active; it counts slots that have been claimed, including
+ * ones whose element has not been published yet.
+ *
+ * @author skywalker
+ * @param <E> the type of elements held in this collection
+ */
+public class SomeRingQueue<E> extends SomeRingQueuePad2<E> implements Queue<E> {
+
+    /*
+     * Slot i of lap n is writable when sequences[i] == n * capacity + i
+     * and readable when sequences[i] == n * capacity + i + 1.  A producer
+     * claims position t by CASing tail from t to t + 1, stores the element
+     * with a plain write and then publishes it with an ordered
+     * (release) store of t + 1 into the slot sequence.  A consumer claims
+     * position h by CASing head, reads and clears the slot, and hands the
+     * slot to the next lap by an ordered store of h + capacity.
+     *
+     * The volatile read of the sequence is what orders the plain element
+     * accesses, so the buffer itself does not need to be an atomic array.
+     *
+     * head and tail live in padded superclasses so producers and
+     * consumers do not false-share a cache line.
+     */
+
+    private final int mask;
+    private final Object[] buffer;
+    private final AtomicLongArray sequences;
+
+    /**
+     * Creates a {@code SomeRingQueue} with room for at least the given
+     * number of elements.  The capacity is rounded up to a power of two.
+     *
+     * @param capacity the minimum capacity of this queue
+     * @throws IllegalArgumentException if {@code capacity} is less than 2
+     *         or greater than 2^30
+     */
+    public SomeRingQueue(int capacity) {
+        if (capacity < 2 || capacity > 1 << 30)
+            throw new IllegalArgumentException();
+        int n = 1 << (32 - Integer.numberOfLeadingZeros(capacity - 1));
+        mask = n - 1;
+        buffer = new Object[n];
+        sequences = new AtomicLongArray(n);
+        for (int i = 0; i < n; i++)
+            sequences.lazySet(i, i);
+    }
+
+    /**
+     * Returns the number of slots of this queue.
+     *
+     * @return the capacity of this queue
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Returns the number of additional elements that this queue can
+     * currently accept without rejecting them.
+     *
+     * @return the remaining capacity
+     */
+    public int remainingCapacity() {
+        return capacity() - size();
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue if there is
+     * a free slot.
+     *
+     * @return {@code true} if the element was added to this queue, else
+     *         {@code false} if the queue is full
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e) {
+        checkNotNull(e);
+        final AtomicLongArray seqs = sequences;
+        final int mask = this.mask;
+        for (long t = tail;;) {
+            int i = (int) t & mask;
+            long dif = seqs.get(i) - t;
+            if (dif == 0) {
+                if (casTail(t, t + 1)) {
+                    buffer[i] = e;
+                    // Publication point for e.
+                    seqs.lazySet(i, t + 1);
+                    return true;
+                }
+                t = tail;
+            }
+            else if (dif < 0)
+                // Slot still holds an element from the previous lap.
+                return false;
+            else
+                // Another producer already claimed t.
+                t = tail;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        final AtomicLongArray seqs = sequences;
+        final int mask = this.mask;
+        for (long h = head;;) {
+            int i = (int) h & mask;
+            long dif = seqs.get(i) - (h + 1);
+            if (dif == 0) {
+                if (casHead(h, h + 1)) {
+                    E e = (E) buffer[i];
+                    buffer[i] = null;
+                    // Hand the slot over to the producers of the next lap.
+                    seqs.lazySet(i, h + mask + 1);
+                    return e;
+                }
+                h = head;
+            }
+            else if (dif < 0)
+                // Nothing published at h yet.
+                return null;
+            else
+                // Another consumer already claimed h.
+                h = head;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        final AtomicLongArray seqs = sequences;
+        for (;;) {
+            long h = head;
+            int i = (int) h & mask;
+            if (seqs.get(i) - (h + 1) < 0)
+                return null;
+            E e = (E) buffer[i];
+            // Until head moves the slot cannot be reused, so e belongs to h.
+            if (e != null && h == head)
+                return e;
+        }
+    }
+
+    /**
+     * Returns {@code true} if this queue contains no elements.
+     *
+     * @return {@code true} if this queue contains no elements
+     */
+    public boolean isEmpty() {
+        return peek() == null;
+    }
+
+    /**
+     * Returns the number of elements in this queue.  This is a constant
+     * time operation, but may be inaccurate while other threads are
+     * inserting or removing elements.
+     *
+     * @return the number of elements in this queue
+     */
+    public int size() {
+        long after = head;
+        for (;;) {
+            long before = after;
+            long t = tail;
+            after = head;
+            if (before == after) {
+                long size = t - after;
+                return (size <= 0) ? 0 : (int) Math.min(size, mask + 1);
+            }
+        }
+    }
+
+    /**
+     * Returns an iterator over the elements in this queue in proper
+     * sequence.  The returned iterator is weakly consistent and does not
+     * support {@link Iterator#remove}.
+     *
+     * @return an iterator over the elements in this queue in proper sequence
+     */
+    public Iterator<E> iterator() {
+        return new Itr();
+    }
+
+    private class Itr implements Iterator<E> {
+        /**
+         * Next position to look at.
+         */
+        private long pos;
+
+        /**
+         * Tail when the iterator was created; later elements are not
+         * returned.
+         */
+        private final long end;
+
+        private E nextItem;
+
+        Itr() {
+            pos = head;
+            end = tail;
+            advance();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            nextItem = null;
+            final AtomicLongArray seqs = sequences;
+            while (pos < end) {
+                long h = head;
+                if (pos < h)
+                    pos = h;
+                long p = pos++;
+                int i = (int) p & mask;
+                if (seqs.get(i) != p + 1)
+                    // Already consumed, or not yet published
+                    continue;
+                E e = (E) buffer[i];
+                if (e != null && seqs.get(i) == p + 1) {
+                    nextItem = e;
+                    return;
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            return nextItem != null;
+        }
+
+        public E next() {
+            E e = nextItem;
+            if (e == null) throw new NoSuchElementException();
+            advance();
+            return e;
+        }
+    }
+
+    /**
+     * Throws NullPointerException if argument is null.
+     *
+     * @param v the element
+     */
+    private static void checkNotNull(Object v) {
+        if (v == null)
+            throw new NullPointerException();
+    }
+}
+
+/*
+ * The head and tail counters are padded like SomeQueue's head and tail,
+ * see the note above SomeQueuePad0.
+ */
+
+abstract class SomeRingQueuePad0<E> extends AbstractQueue<E> {
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
+
+abstract class SomeRingQueueTail<E> extends SomeRingQueuePad0<E> {
+    @SuppressWarnings("rawtypes")
+    private static final AtomicLongFieldUpdater<SomeRingQueueTail> TAIL =
+            AtomicLongFieldUpdater.newUpdater(SomeRingQueueTail.class, "tail");
+
+    /**
+     * Next position a producer will claim.
+     */
+    volatile long tail;
+
+    final boolean casTail(long cmp, long val) {
+        return TAIL.compareAndSet(this, cmp, val);
+    }
+}
+
+abstract class SomeRingQueuePad1<E> extends SomeRingQueueTail<E> {
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
+
+abstract class SomeRingQueueHead<E> extends SomeRingQueuePad1<E> {
+    @SuppressWarnings("rawtypes")
+    private static final AtomicLongFieldUpdater<SomeRingQueueHead> HEAD =
+            AtomicLongFieldUpdater.newUpdater(SomeRingQueueHead.class, "head");
+
+    /**
+     * Next position a consumer will claim.
+     */
+    volatile long head;
+
+    final boolean casHead(long cmp, long val) {
+        return HEAD.compareAndSet(this, cmp, val);
+    }
+}
+
+abstract class SomeRingQueuePad2<E> extends SomeRingQueueHead<E> {
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
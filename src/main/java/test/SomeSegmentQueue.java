@@ -0,0 +1,456 @@
+package test;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * An unbounded thread-safe {@linkplain Queue queue} based on a linked list
+ * of fixed-size array segments.  This queue orders elements FIFO
+ * (first-in-first-out) and does not permit {@code null} elements, like
+ * {@link SomeQueue}, but stores many elements per list node.
+ *
+ * <p>Producers and consumers claim slots with a fetch-and-add on the
+ * segment's enqueue or dequeue index instead of CASing a shared
+ * pointer, so under contention each operation succeeds on its first
+ * atomic instruction in the common case, and consecutive elements sit
+ * next to each other in memory.  A new segment is allocated once per
+ * segment size elements.
+ *
+ * <p>Iterators are <i>weakly consistent</i>.  As with {@code SomeQueue},
+ * {@code size} is <em>NOT</em> a constant-time operation, although it
+ * reads the segment indices instead of visiting every element.
+ *
+ * @author skywalker
+ * @param <E> the type of elements held in this collection
+ */
+public class SomeSegmentQueue<E> extends SomeSegmentQueuePad2<E> implements Queue<E> {
+
+    /*
+     * This is the FAA array queue of Pedro Ramalhete and Andreia Correia,
+     * which in turn simplifies the LCRQ of Morrison and Afek: the list of
+     * segments is a Michael & Scott queue, and inside a segment
+     *
+     * - a producer takes slot i = enqIdx++ and CASes item i from null to
+     *   its element;
+     * - a consumer takes slot i = deqIdx++ and swaps item i with TAKEN.
+     *   If it got null, the producer of slot i has not written yet; the
+     *   slot is now poisoned, the producer's CAS fails and it takes
+     *   another slot.  If it got TAKEN, remove(Object) got there first.
+     *
+     * The successful CAS of a producer or the swap of a consumer is the
+     * linearization point.  A producer that overruns a full segment
+     * appends a new segment holding its element in slot 0.  A consumer
+     * that overruns a segment moves head to the next one, if any.
+     *
+     * Segments are never reused, so there is no ABA; a consumed segment
+     * becomes garbage once head and tail have moved past it and no
+     * iterator holds it.  Consumed slots hold TAKEN rather than the
+     * element, so elements do not stay reachable from a segment.
+     */
+
+    /** Marks a slot whose element was taken or that was poisoned. */
+    static final Object TAKEN = new Object();
+
+    /** Default number of slots per segment */
+    static final int DEFAULT_SEGMENT_SIZE = 1024;
+
+    final int segmentSize;
+
+    /**
+     * Creates an empty queue with segments of 1024 slots.
+     */
+    public SomeSegmentQueue() {
+        this(DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates an empty queue with segments of the given number of slots.
+     *
+     * @param segmentSize the number of slots per segment
+     * @throws IllegalArgumentException if {@code segmentSize} is less than 2
+     */
+    public SomeSegmentQueue(int segmentSize) {
+        if (segmentSize < 2)
+            throw new IllegalArgumentException();
+        this.segmentSize = segmentSize;
+        head = tail = new Segment<>(segmentSize, null);
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue.
+     * As the queue is unbounded, this method will never return {@code false}.
+     *
+     * @return {@code true} (as specified by {@link Queue#offer})
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e) {
+        checkNotNull(e);
+        final int size = segmentSize;
+        for (;;) {
+            Segment<E> t = tail;
+            int i = t.nextEnqIndex();
+            if (i < size) {
+                if (t.items.compareAndSet(i, null, e))
+                    return true;
+                // Poisoned by a consumer; take another slot.
+                continue;
+            }
+            if (t != tail)
+                continue;
+            Segment<E> next = t.next;
+            if (next == null) {
+                Segment<E> s = new Segment<>(size, e);
+                if (t.casNext(null, s)) {
+                    casTail(t, s);  // Failure is OK.
+                    return true;
+                }
+            }
+            else
+                casTail(t, next);
+        }
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue.
+     * As the queue is unbounded, this method will never throw
+     * {@link IllegalStateException} or return {@code false}.
+     *
+     * @return {@code true} (as specified by {@link java.util.Collection#add})
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean add(E e) {
+        return offer(e);
+    }
+
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        final int size = segmentSize;
+        for (;;) {
+            Segment<E> h = head;
+            if (h.deqIdx >= h.enqIdx && h.next == null)
+                return null;
+            int i = h.nextDeqIndex();
+            if (i < size) {
+                Object item = h.items.getAndSet(i, TAKEN);
+                if (item != null && item != TAKEN)
+                    return (E) item;
+                // Either the producer of slot i has not written yet, and
+                // the slot is now poisoned, or remove(Object) took it.
+                continue;
+            }
+            Segment<E> next = h.next;
+            if (next == null)
+                return null;
+            casHead(h, next);
+        }
+    }
+
+    public E peek() {
+        for (Segment<E> s = head; s != null; s = s.next) {
+            E item = s.first();
+            if (item != null)
+                return item;
+        }
+        return null;
+    }
+
+    /**
+     * Returns {@code true} if this queue contains no elements.
+     *
+     * @return {@code true} if this queue contains no elements
+     */
+    public boolean isEmpty() {
+        return peek() == null;
+    }
+
+    /**
+     * Returns the number of elements in this queue.  If this queue
+     * contains more than {@code Integer.MAX_VALUE} elements, returns
+     * {@code Integer.MAX_VALUE}.
+     *
+     * <p>The count is derived from the segment indices, one segment at a
+     * time, and includes slots that have been claimed by a producer but
+     * not yet written, as well as elements removed by
+     * {@link #remove(Object)} from the middle of a segment.  It may be
+     * inaccurate if this queue is modified concurrently.
+     *
+     * @return the number of elements in this queue
+     */
+    public int size() {
+        final int size = segmentSize;
+        long count = 0;
+        for (Segment<E> s = head; s != null; s = s.next) {
+            int enq = Math.min(s.enqIdx, size);
+            int deq = Math.min(s.deqIdx, size);
+            if (enq > deq)
+                count += enq - deq;
+        }
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns {@code true} if this queue contains the specified element.
+     *
+     * @param o object to be checked for containment in this queue
+     * @return {@code true} if this queue contains the specified element
+     */
+    public boolean contains(Object o) {
+        if (o == null) return false;
+        for (E e : this)
+            if (o.equals(e))
+                return true;
+        return false;
+    }
+
+    /**
+     * Removes a single instance of the specified element from this queue,
+     * if it is present.  The slot is marked taken; consumers skip it.
+     *
+     * @param o element to be removed from this queue, if present
+     * @return {@code true} if this queue changed as a result of the call
+     */
+    public boolean remove(Object o) {
+        if (o == null) return false;
+        final int size = segmentSize;
+        for (Segment<E> s = head; s != null; s = s.next) {
+            int end = Math.min(s.enqIdx, size);
+            for (int i = Math.min(s.deqIdx, size); i < end; i++) {
+                Object item = s.items.get(i);
+                if (item != null && item != TAKEN && o.equals(item)
+                        && s.items.compareAndSet(i, item, TAKEN))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns an iterator over the elements in this queue in proper sequence.
+     * The returned iterator is <i>weakly consistent</i>.
+     *
+     * @return an iterator over the elements in this queue in proper sequence
+     */
+    public Iterator<E> iterator() {
+        return new Itr();
+    }
+
+    private class Itr implements Iterator<E> {
+        private Segment<E> segment;
+        private int index;
+        private E nextItem;
+
+        /** Segment and slot of the last returned item, for remove */
+        private Segment<E> lastSegment;
+        private int lastIndex;
+
+        Itr() {
+            segment = head;
+            index = Math.min(segment.deqIdx, segmentSize);
+            advance();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            nextItem = null;
+            final int size = segmentSize;
+            while (segment != null) {
+                int end = Math.min(segment.enqIdx, size);
+                while (index < end) {
+                    Object item = segment.items.get(index++);
+                    if (item != null && item != TAKEN) {
+                        nextItem = (E) item;
+                        return;
+                    }
+                }
+                if (end < size)
+                    // Reached the tail.
+                    return;
+                segment = segment.next;
+                index = 0;
+            }
+        }
+
+        public boolean hasNext() {
+            return nextItem != null;
+        }
+
+        public E next() {
+            E e = nextItem;
+            if (e == null) throw new NoSuchElementException();
+            lastSegment = segment;
+            lastIndex = index - 1;
+            advance();
+            return e;
+        }
+
+        public void remove() {
+            Segment<E> s = lastSegment;
+            if (s == null) throw new IllegalStateException();
+            Object item = s.items.get(lastIndex);
+            if (item != null && item != TAKEN)
+                s.items.compareAndSet(lastIndex, item, TAKEN);
+            lastSegment = null;
+        }
+    }
+
+    /**
+     * Returns a {@link Spliterator} over the elements in this queue.  The
+     * returned spliterator is <i>weakly consistent</i> and reports
+     * {@link Spliterator#CONCURRENT}, {@link Spliterator#ORDERED} and
+     * {@link Spliterator#NONNULL}.
+     *
+     * @return a {@code Spliterator} over the elements in this queue
+     */
+    @Override
+    public Spliterator<E> spliterator() {
+        return Spliterators.spliteratorUnknownSize(iterator(),
+                Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.CONCURRENT);
+    }
+
+    /**
+     * Throws NullPointerException if argument is null.
+     *
+     * @param v the element
+     */
+    private static void checkNotNull(Object v) {
+        if (v == null)
+            throw new NullPointerException();
+    }
+
+    /*
+     * The indices are separated by padding so that producers
+     * incrementing enqIdx and consumers incrementing deqIdx of the same
+     * segment do not false-share.
+     */
+
+    abstract static class SegmentPad0 {
+        long p00, p01, p02, p03, p04, p05, p06, p07;
+    }
+
+    abstract static class SegmentEnq extends SegmentPad0 {
+        /** Next slot a producer claims; may run past the segment size */
+        volatile int enqIdx;
+    }
+
+    abstract static class SegmentPad1 extends SegmentEnq {
+        long p10, p11, p12, p13, p14, p15, p16, p17;
+    }
+
+    abstract static class SegmentDeq extends SegmentPad1 {
+        /** Next slot a consumer claims; may run past the segment size */
+        volatile int deqIdx;
+    }
+
+    abstract static class SegmentPad2 extends SegmentDeq {
+        long p20, p21, p22, p23, p24, p25, p26, p27;
+    }
+
+    static final class Segment<E> extends SegmentPad2 {
+        private static final AtomicIntegerFieldUpdater<SegmentEnq> ENQ_IDX =
+                AtomicIntegerFieldUpdater.newUpdater(SegmentEnq.class, "enqIdx");
+        private static final AtomicIntegerFieldUpdater<SegmentDeq> DEQ_IDX =
+                AtomicIntegerFieldUpdater.newUpdater(SegmentDeq.class, "deqIdx");
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<Segment, Segment> NEXT =
+                AtomicReferenceFieldUpdater.newUpdater(Segment.class, Segment.class, "next");
+
+        final AtomicReferenceArray<Object> items;
+        volatile Segment<E> next;
+
+        /**
+         * Creates a segment, optionally holding a first element in slot 0
+         * which is published together with the segment.
+         */
+        Segment(int size, E first) {
+            items = new AtomicReferenceArray<>(size);
+            if (first != null) {
+                items.lazySet(0, first);
+                enqIdx = 1;
+            }
+        }
+
+        int nextEnqIndex() {
+            return ENQ_IDX.getAndIncrement(this);
+        }
+
+        int nextDeqIndex() {
+            return DEQ_IDX.getAndIncrement(this);
+        }
+
+        boolean casNext(Segment<E> cmp, Segment<E> val) {
+            return NEXT.compareAndSet(this, cmp, val);
+        }
+
+        /**
+         * Returns the first element not yet taken, without claiming it.
+         */
+        @SuppressWarnings("unchecked")
+        E first() {
+            int end = Math.min(enqIdx, items.length());
+            for (int i = deqIdx; i < end; i++) {
+                Object item = items.get(i);
+                if (item != null && item != TAKEN)
+                    return (E) item;
+            }
+            return null;
+        }
+    }
+}
+
+/*
+ * head and tail are padded like SomeQueue's, see the note above
+ * SomeQueuePad0.
+ */
+
+abstract class SomeSegmentQueuePad0<E> extends AbstractQueue<E> {
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
+
+abstract class SomeSegmentQueueHead<E> extends SomeSegmentQueuePad0<E> {
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<SomeSegmentQueueHead, SomeSegmentQueue.Segment> HEAD =
+            AtomicReferenceFieldUpdater.newUpdater(SomeSegmentQueueHead.class, SomeSegmentQueue.Segment.class, "head");
+
+    /**
+     * Segment consumers take elements from; never null.
+     */
+    volatile SomeSegmentQueue.Segment<E> head;
+
+    final boolean casHead(SomeSegmentQueue.Segment<E> cmp, SomeSegmentQueue.Segment<E> val) {
+        return HEAD.compareAndSet(this, cmp, val);
+    }
+}
+
+abstract class SomeSegmentQueuePad1<E> extends SomeSegmentQueueHead<E> {
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
+
+abstract class SomeSegmentQueueTail<E> extends SomeSegmentQueuePad1<E> {
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<SomeSegmentQueueTail, SomeSegmentQueue.Segment> TAIL =
+            AtomicReferenceFieldUpdater.newUpdater(SomeSegmentQueueTail.class, SomeSegmentQueue.Segment.class, "tail");
+
+    /**
+     * Segment producers add elements to; the last segment can be reached
+     * from it.  Never null.
+     */
+    volatile SomeSegmentQueue.Segment<E> tail;
+
+    final boolean casTail(SomeSegmentQueue.Segment<E> cmp, SomeSegmentQueue.Segment<E> val) {
+        return TAIL.compareAndSet(this, cmp, val);
+    }
+}
+
+abstract class SomeSegmentQueuePad2<E> extends SomeSegmentQueueTail<E> {
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
@@ -0,0 +1,49 @@
+package test;
+
+/**
+ * An unbounded linked queue for exactly one producer thread and any
+ * number of consumer threads.
+ *
+ * <p>The producer appends as in {@link SomeSpscQueue}, without a CAS.
+ * Consumers compete for the dummy node's successor with a single
+ * {@code casHead}: the winner owns that node's item, so unlike
+ * {@link SomeQueue#poll} there is no casItem and no head hop.
+ *
+ * @author skywalker
+ * @param <E> the type of elements held in this collection
+ * @see SomeQueues#newQueue(SomeQueues.Topology)
+ */
+public class SomeSpmcQueue<E> extends AbstractSomeLinkedQueue<E> {
+
+    /**
+     * Inserts the specified element at the tail of this queue.  Must only
+     * be called by the producer thread.
+     *
+     * @return {@code true} (as specified by {@link java.util.Queue#offer})
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e) {
+        checkNotNull(e);
+        final Node<E> newNode = new Node<E>(e);
+        final Node<E> t = tail;
+        lazySetTail(newNode);
+        t.lazySetNext(newNode);
+        return true;
+    }
+
+    public E poll() {
+        for (;;) {
+            final Node<E> h = head;
+            final Node<E> p = h.next;
+            if (p == null)
+                return null;
+            // p == h if h was dequeued meanwhile; the CAS below then fails
+            if (p != h && casHead(h, p)) {
+                E item = p.item;
+                p.lazySetItem(null);
+                h.lazySetNext(h);
+                return item;
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package test;
+
+/**
+ * An unbounded linked queue for exactly one producer thread and one
+ * consumer thread.  Neither side executes a CAS: the producer owns
+ * {@code tail} and publishes each node with an ordered store of the
+ * predecessor's {@code next}; the consumer owns {@code head} and clears
+ * items and advances {@code head} with ordered stores.
+ *
+ * <p>Any thread may call the read-only methods ({@code peek}, {@code size},
+ * iteration); calling {@code offer} from more than one thread, or
+ * {@code poll} from more than one thread, corrupts the queue.
+ *
+ * @author skywalker
+ * @param <E> the type of elements held in this collection
+ * @see SomeQueues#newQueue(SomeQueues.Topology)
+ */
+public class SomeSpscQueue<E> extends AbstractSomeLinkedQueue<E> {
+
+    /**
+     * Inserts the specified element at the tail of this queue.  Must only
+     * be called by the producer thread.
+     *
+     * @return {@code true} (as specified by {@link java.util.Queue#offer})
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e) {
+        checkNotNull(e);
+        final Node<E> newNode = new Node<E>(e);
+        final Node<E> t = tail;
+        lazySetTail(newNode);
+        t.lazySetNext(newNode);
+        return true;
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, or returns null if
+     * this queue is empty.  Must only be called by the consumer thread.
+     */
+    public E poll() {
+        final Node<E> h = head;
+        final Node<E> p = h.next;
+        if (p == null)
+            return null;
+        return consumeSingle(h, p);
+    }
+}
@@ -1,6 +1,19 @@
 package test;
 
+import org.junit.Assert;
+import org.junit.Assume;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.concurrent.*;
 
 /**
@@ -26,6 +39,154 @@ public class Test {
         System.out.println(queue.poll());
     }
 
+    @org.junit.Test
+    public void timestampedQueue() throws InterruptedException {
+        SomeQueue<String> queue = new SomeQueue<>(false, SomeQueue.IndexMode.NONE, true);
+        queue.offer("a");
+        Thread.sleep(50);
+        queue.offer("b");
+        //a已经过期, 被丢弃
+        System.out.println(queue.pollFresh(20, TimeUnit.MILLISECONDS));
+        System.out.println(queue.droppedCount());
+    }
+
+    @org.junit.Test
+    public void laneQueue() {
+        SomeLaneQueue<String> queue = SomeLaneQueue.strictPriority(2, s -> s.startsWith("bulk") ? 1 : 0);
+        queue.offer("bulk-1");
+        queue.offer("bulk-2");
+        queue.offer("control");
+        //control插队
+        System.out.println(queue.poll());
+        System.out.println(queue.laneSize(1));
+    }
+
+    /**
+     * hasNext()换到下一个lane之后, remove()删除的仍然是next()返回的元素.
+     */
+    @org.junit.Test
+    public void laneQueueIteratorRemove() {
+        SomeLaneQueue<String> queue = SomeLaneQueue.strictPriority(2, s -> s.startsWith("bulk") ? 1 : 0);
+        queue.offer("control");
+        queue.offer("bulk");
+        Iterator<String> iterator = queue.iterator();
+        Assert.assertEquals("control", iterator.next());
+        Assert.assertTrue(iterator.hasNext());
+        iterator.remove();
+        Assert.assertEquals("bulk", iterator.next());
+        Assert.assertFalse(iterator.hasNext());
+        Assert.assertEquals(Arrays.asList("bulk"), new ArrayList<>(queue));
+    }
+
+    @org.junit.Test
+    public void ringQueue() {
+        SomeRingQueue<String> queue = new SomeRingQueue<>(2);
+        System.out.println(queue.offer("a"));
+        System.out.println(queue.offer("b"));
+        //满了
+        System.out.println(queue.offer("c"));
+        System.out.println(queue.poll() + queue.poll());
+    }
+
+    @org.junit.Test
+    public void longQueue() {
+        LongQueue queue = new LongQueue();
+        queue.offer(1L);
+        queue.offer(2L);
+        System.out.println(queue.poll());
+        queue.drain(System.out::println);
+        //空了
+        System.out.println(queue.poll() == LongQueue.EMPTY);
+    }
+
+    /**
+     * 最长的消息在任何位置都能放进空队列, 包括奇数长度的消息之后.
+     */
+    @org.junit.Test
+    public void offHeapQueueMaxMessage() {
+        SomeOffHeapQueue queue = new SomeOffHeapQueue(1024);
+        byte[] max = new byte[queue.maxMessageLength()];
+        for (int odd = 1; odd < 64; odd += 2) {
+            Assert.assertTrue(queue.offer(new byte[odd]));
+            Assert.assertEquals(odd, queue.poll().length);
+            for (int i = 0; i < 3; i++) {
+                Assert.assertTrue(queue.offer(max));
+                Assert.assertEquals(max.length, queue.poll().length);
+            }
+        }
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    @org.junit.Test
+    public void journalQueue() throws IOException {
+        Path dir = Files.createTempDirectory("journal");
+        try (SomeJournalQueue<String> queue = new SomeJournalQueue<>(dir, SomeJournalQueue.Codec.utf8())) {
+            queue.offer("a");
+            queue.offer("b");
+            System.out.println(queue.poll());
+        }
+        //重新打开, 还剩b
+        try (SomeJournalQueue<String> queue = new SomeJournalQueue<>(dir, SomeJournalQueue.Codec.utf8())) {
+            System.out.println(queue.poll());
+        }
+    }
+
+    /**
+     * 撕裂的记录之后的旧记录在恢复时被清除, 不会在下次恢复时复活.
+     */
+    @org.junit.Test
+    public void journalQueueTornRecord() throws IOException {
+        Path dir = Files.createTempDirectory("journal");
+        try (SomeJournalQueue<String> queue = new SomeJournalQueue<>(dir, SomeJournalQueue.Codec.utf8(), 64,
+                FsyncPolicy.never())) {
+            //每条记录16字节
+            queue.offer("a");
+            queue.offer("bb");
+            queue.offer("c");
+        }
+        //破坏bb的CRC
+        try (FileChannel channel = FileChannel.open(dir.resolve(String.format("%020d.journal", 0)),
+                StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{1}), 16 + 4);
+        }
+        try (SomeJournalQueue<String> queue = new SomeJournalQueue<>(dir, SomeJournalQueue.Codec.utf8(), 64,
+                FsyncPolicy.never())) {
+            //dd正好结束在c之前
+            queue.offer("dd");
+        }
+        try (SomeJournalQueue<String> queue = new SomeJournalQueue<>(dir, SomeJournalQueue.Codec.utf8(), 64,
+                FsyncPolicy.never())) {
+            Assert.assertEquals(Arrays.asList("a", "dd"), new ArrayList<>(queue));
+        }
+    }
+
+    /**
+     * size/peek/iterator反复遍历积压的多个segment时不会每次都重新map, 只在Linux上能数/proc/self/maps.
+     */
+    @org.junit.Test
+    public void journalQueueWalkMapsOnce() throws IOException {
+        Path maps = Paths.get("/proc/self/maps");
+        Assume.assumeTrue(Files.isReadable(maps));
+        Path dir = Files.createTempDirectory("journal");
+        try (SomeJournalQueue<String> queue = new SomeJournalQueue<>(dir, SomeJournalQueue.Codec.utf8(), 4096,
+                FsyncPolicy.never())) {
+            //每条记录16字节, 4个segment
+            for (int i = 0; i < 1000; i++)
+                queue.offer("e" + i % 10);
+            for (int i = 0; i < 300; i++) {
+                Assert.assertEquals(1000, queue.size());
+                Assert.assertEquals("e0", queue.peek());
+                Assert.assertEquals(1000, new ArrayList<>(queue).size());
+            }
+            String prefix = dir.toRealPath().toString();
+            long mappings = Files.readAllLines(maps).stream()
+                    .filter(line -> line.contains(prefix) && line.endsWith(".journal"))
+                    .count();
+            Assert.assertTrue("Journal mappings: " + mappings, mappings <= 4);
+            Assert.assertEquals("e0", queue.poll());
+        }
+    }
+
     @org.junit.Test
     public void threadPool() throws InterruptedException {
         ThreadPoolExecutor service = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
@@ -0,0 +1,79 @@
+package test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides what a consumer of a {@link SomeBlockingQueue} does after it
+ * found the queue empty.
+ *
+ * <p>Strategies that never park keep the consumer on its core and never
+ * register it as a waiter, so producers never have to signal it.
+ * Strategies that park register the consumer before parking, and only
+ * then does an {@code offer} pay for an unpark.
+ *
+ * @author skywalker
+ */
+public interface WaitStrategy {
+
+    /**
+     * Returned by {@link #idle} to park until a producer signals.
+     */
+    long PARK_UNTIL_SIGNALLED = Long.MAX_VALUE;
+
+    /**
+     * Called each time a consumer finds the queue empty.  The strategy may
+     * spin or yield before returning.
+     *
+     * @param round the number of consecutive empty polls before this one
+     * @return {@code 0} to poll again right away, otherwise the number of
+     *         nanoseconds to park for, or {@link #PARK_UNTIL_SIGNALLED}
+     */
+    long idle(int round);
+
+    /**
+     * Polls in a tight loop.  Lowest latency, burns a core per consumer.
+     */
+    static WaitStrategy busySpin() {
+        return round -> 0L;
+    }
+
+    /**
+     * Polls in a tight loop for the given number of rounds, then yields
+     * the processor between polls.
+     *
+     * @param spins the number of rounds to spin before yielding
+     */
+    static WaitStrategy spinThenYield(int spins) {
+        return round -> {
+            if (round >= spins)
+                Thread.yield();
+            return 0L;
+        };
+    }
+
+    /**
+     * Polls in a tight loop for the given number of rounds, then parks
+     * until a producer signals.
+     *
+     * @param spins the number of rounds to spin before parking
+     */
+    static WaitStrategy spinThenPark(int spins) {
+        return round -> (round < spins) ? 0L : PARK_UNTIL_SIGNALLED;
+    }
+
+    /**
+     * Parks for at most the given time between polls.  A producer may
+     * still wake the consumer earlier, the timeout only bounds the
+     * latency of a missed signal.
+     *
+     * @param timeout the maximum time to park
+     * @param unit the time unit of the timeout argument
+     */
+    static WaitStrategy timedPark(long timeout, TimeUnit unit) {
+        final long nanos = unit.toNanos(timeout);
+        if (nanos <= 0)
+            throw new IllegalArgumentException();
+        return round -> nanos;
+    }
+
+}
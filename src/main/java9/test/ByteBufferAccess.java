@@ -0,0 +1,42 @@
+package test;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Atomic access to {@code long} words of a direct {@link ByteBuffer}, for
+ * {@link SomeOffHeapQueue}.  Indices are byte offsets and must be
+ * multiples of 8.
+ *
+ * <p>This is the JDK 9+ version of the class, packaged under
+ * {@code META-INF/versions/9} of the multi-release jar.  It uses a byte
+ * buffer view {@link VarHandle}, which supports volatile, release and
+ * CAS access to aligned words of direct buffers.
+ *
+ * @author skywalker
+ */
+final class ByteBufferAccess {
+
+    private ByteBufferAccess() {
+    }
+
+    static long getLongVolatile(ByteBuffer buffer, int index) {
+        return (long) LONGS.getVolatile(buffer, index);
+    }
+
+    /**
+     * Ordered (release) store.
+     */
+    static void putLongRelease(ByteBuffer buffer, int index, long value) {
+        LONGS.setRelease(buffer, index, value);
+    }
+
+    static boolean casLong(ByteBuffer buffer, int index, long cmp, long val) {
+        return LONGS.compareAndSet(buffer, index, cmp, val);
+    }
+
+    private static final VarHandle LONGS =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+}
@@ -0,0 +1,89 @@
+package test;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Field access for {@link SomeQueue} beyond plain volatile reads.
+ *
+ * <p>This is the JDK 9+ version of the class, packaged under
+ * {@code META-INF/versions/9} of the multi-release jar.  It uses the
+ * weakest {@link VarHandle} access mode each operation allows:
+ * <ul>
+ * <li>the item of a node that is not published yet is written plainly,
+ * since it can only be seen after the casNext that links the node;</li>
+ * <li>lazySetNext is a release store;</li>
+ * <li>the tail hop of the relaxed tail mode is a weak release CAS;</li>
+ * <li>the CASes stay full-fence compareAndSet, as they are the
+ * linearization points of offer and poll.</li>
+ * </ul>
+ * There is no opaque mode: every read of head, tail, next or item
+ * either goes on to read the item of the node it found, which was
+ * written plainly and is only visible through the acquire of that read,
+ * or is the check half of a CAS-then-check handshake (isEmpty in
+ * SomeBlockingQueue), which needs the volatile read's total order.
+ *
+ * @author skywalker
+ */
+final class SomeQueueAccess {
+
+    private SomeQueueAccess() {
+    }
+
+    /**
+     * Plain store, only for nodes that are not published yet.
+     */
+    static <E> void putItemRelaxed(SomeQueue.Node<E> node, E item) {
+        ITEM.set(node, item);
+    }
+
+    static <E> boolean casItem(SomeQueue.Node<E> node, E cmp, E val) {
+        return ITEM.compareAndSet(node, cmp, val);
+    }
+
+    /**
+     * Ordered (release) store.
+     */
+    static <E> void lazySetNext(SomeQueue.Node<E> node, SomeQueue.Node<E> val) {
+        NEXT.setRelease(node, val);
+    }
+
+    static <E> boolean casNext(SomeQueue.Node<E> node, SomeQueue.Node<E> cmp, SomeQueue.Node<E> val) {
+        return NEXT.compareAndSet(node, cmp, val);
+    }
+
+    static <E> boolean casHead(SomeQueue<E> queue, SomeQueue.Node<E> cmp, SomeQueue.Node<E> val) {
+        return HEAD.compareAndSet(queue, cmp, val);
+    }
+
+    static <E> boolean casTail(SomeQueue<E> queue, SomeQueue.Node<E> cmp, SomeQueue.Node<E> val) {
+        return TAIL.compareAndSet(queue, cmp, val);
+    }
+
+    /**
+     * CAS that may fail spuriously and needs only release semantics.
+     */
+    static <E> boolean weakCasTailRelease(SomeQueue<E> queue, SomeQueue.Node<E> cmp, SomeQueue.Node<E> val) {
+        return TAIL.weakCompareAndSetRelease(queue, cmp, val);
+    }
+
+    // VarHandle mechanics
+
+    private static final VarHandle ITEM;
+    private static final VarHandle NEXT;
+    private static final VarHandle HEAD;
+    private static final VarHandle TAIL;
+
+    static {
+        try {
+            MethodHandles.Lookup l = MethodHandles.lookup();
+            ITEM = l.findVarHandle(SomeQueue.Node.class, "item", Object.class);
+            NEXT = l.findVarHandle(SomeQueue.Node.class, "next", SomeQueue.Node.class);
+            // head and tail are inherited from the padding superclasses
+            HEAD = l.findVarHandle(SomeQueue.class, "head", SomeQueue.Node.class);
+            TAIL = l.findVarHandle(SomeQueue.class, "tail", SomeQueue.Node.class);
+        } catch (ReflectiveOperationException e) {
+            throw new Error(e);
+        }
+    }
+}